@@ -0,0 +1,918 @@
+/*
+  Stockfish, a UCI chess playing engine derived from Glaurung 2.1
+  Copyright (C) 2004-2021 The Stockfish developers (see AUTHORS file)
+
+  Stockfish is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Stockfish is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+#include <algorithm>
+#include <atomic>
+#include <chrono>
+#include <condition_variable>
+#include <cstring>
+#include <deque>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <set>
+#include <sstream>
+#include <thread>
+#include <vector>
+
+#include "cluster.h"
+#include "misc.h"
+#include "position.h"
+#include "thread.h"
+#include "tt.h"
+#include "uci.h"
+
+#ifndef _WIN32
+#include <cerrno>
+#include <fcntl.h>
+#include <netdb.h>
+#include <poll.h>
+#include <unistd.h>
+#include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/socket.h>
+#endif
+
+#if !defined(MSG_NOSIGNAL)
+#define MSG_NOSIGNAL 0
+#endif
+
+namespace Stockfish::Cluster {
+
+namespace {
+
+  // The processes exchange messages made of a header and a payload: first the
+  // version and network of each side, then the UCI commands of the coordinator,
+  // batches of transposition table entries, the node counts of the workers
+  // while they search and their result.
+  enum MessageType : uint32_t {
+    HelloMessage, CommandMessage, EntriesMessage, StatusMessage, ResultMessage
+  };
+
+  struct MessageHeader {
+    uint32_t type;
+    uint32_t size;
+  };
+
+  // A transposition table entry as sent to the other processes. The entries
+  // are sent as laid out in memory, so all the processes must run on hosts of
+  // the same endianness, and with the same network to agree on evaluations.
+  struct SharedEntry {
+    Key      key;
+    int16_t  value;
+    int16_t  eval;
+    uint16_t move;
+    uint8_t  depth8;
+    uint8_t  pvBound;
+  };
+
+  static_assert(sizeof(SharedEntry) == 16, "Unexpected SharedEntry size");
+
+  // Number of entries of a search thread sent together
+  constexpr size_t BatchSize = 32;
+
+  // Size of the largest message. A peer sending a larger one is disconnected.
+  constexpr size_t MaxMessageSize = 1 << 20;
+  constexpr size_t MaxMessageEntries = MaxMessageSize / sizeof(SharedEntry);
+
+  // Entries received, or queued for a connection, beyond which new ones are dropped
+  constexpr size_t MaxReceived = 1 << 20;
+  constexpr size_t MaxQueuedBytes = 16 << 20;
+
+  // A connection to another process: a worker for the coordinator, the
+  // coordinator for a worker
+  struct Connection {
+    explicit Connection(int f) : fd(f) {}
+
+    int fd;
+    std::string in, out;    // Bytes received and not yet handled, bytes to send
+    uint64_t nodes = 0;     // Last node count of the worker
+    uint64_t tbHits = 0;
+    int goCount = 0;        // Number of searches started on the worker
+    bool searching = false; // The worker searches for the coordinator
+    std::string result;     // Last result of the worker
+    bool verified = false;  // The peer runs the same version with the same network
+    bool closed = false;
+  };
+
+  std::mutex mutex;
+  std::condition_variable cv;
+  std::vector<std::unique_ptr<Connection>> connections;
+  int listenFd = -1;
+  std::atomic<bool> worker;
+  bool workerSearching;
+  int workerGoCount;
+  std::deque<std::string> commands;
+  std::string positionCmd = "position startpos";
+  std::vector<SharedEntry> outgoing, received;
+  std::vector<std::string> notices; // Messages for the GUI, sent by the I/O thread
+
+  std::atomic<bool> connected, ioExit;
+  std::atomic<uint64_t> remoteNodes, remoteTbHits;
+  std::thread ioThread;
+
+  thread_local std::vector<SharedEntry> staging; // Entries of a search thread not yet in outgoing
+
+
+  // append() queues a message to be sent on the given connection
+  void append(Connection& c, MessageType type, const void* data, size_t size) {
+
+    const MessageHeader header = { uint32_t(type), uint32_t(size) };
+    c.out.append(reinterpret_cast<const char*>(&header), sizeof(header));
+    c.out.append(static_cast<const char*>(data), size);
+  }
+
+  void append(Connection& c, const std::string& cmd) {
+    append(c, CommandMessage, cmd.data(), cmd.size());
+  }
+
+  // append_entries() queues entries to be sent, in messages of at most
+  // MaxMessageEntries entries
+  void append_entries(Connection& c, const SharedEntry* entries, size_t count) {
+
+    for (size_t i = 0; i < count && c.out.size() < MaxQueuedBytes; i += MaxMessageEntries)
+        append(c, EntriesMessage, entries + i, std::min(count - i, MaxMessageEntries) * sizeof(SharedEntry));
+  }
+
+  // identity() returns the version of the engine and the hash of its networks,
+  // which the processes of a cluster send each other on connection
+  std::string identity() {
+
+    std::stringstream ss;
+    ss << engine_info() << " " << std::hex << Eval::NNUE::net_hash()
+       << (Eval::useNNUE ? " nnue" : " classical");
+    return ss.str();
+  }
+
+  // send_outgoing() queues the entries passed by the search threads to all the
+  // other processes, with the mutex held
+  void send_outgoing() {
+
+    if (outgoing.empty())
+        return;
+
+    for (auto& c : connections)
+        if (c->verified)
+            append_entries(*c, outgoing.data(), outgoing.size());
+
+    outgoing.clear();
+  }
+
+  // hello() queues the identity of this process, the first message on a connection
+  void hello(Connection& c) {
+
+    const std::string id = identity();
+    append(c, HelloMessage, id.data(), id.size());
+  }
+
+  // accepted() returns whether a worker executes the given command of its
+  // coordinator. Only the commands driving a search are, so that a coordinator
+  // cannot make its workers write files, load networks or change their options.
+  bool accepted(const std::string& cmd) {
+
+    const std::set<std::string> searchCommands = { "position", "go", "stop", "ponderhit", "ucinewgame", "quit" };
+    const std::set<std::string> options = { "UCI_Chess960" };
+
+    std::istringstream is(cmd);
+    std::string token, name;
+
+    is >> token;
+    if (token != "setoption")
+        return searchCommands.count(token);
+
+    // Read the option name, which may contain spaces, as UCI::setoption() does
+    is >> token;
+    while (is >> token && token != "value")
+        name += (name.empty() ? "" : " ") + token;
+
+    return options.count(name);
+  }
+
+  // update_remote_counts() sums the node counts of the workers
+  void update_remote_counts() {
+
+    uint64_t nodes = 0, tbHits = 0;
+    for (auto& c : connections)
+        nodes += c->nodes, tbHits += c->tbHits;
+
+    remoteNodes = nodes;
+    remoteTbHits = tbHits;
+  }
+
+  // handle() processes a message received on the given connection, with the
+  // mutex held. Returns false if the connection must be closed: the first
+  // message must be the identity of the peer, equal to the one of this process.
+  bool handle(Connection& c, MessageType type, const char* data, size_t size) {
+
+    if (!c.verified)
+    {
+        if (type != HelloMessage || std::string(data, size) != identity())
+        {
+            if (worker)
+                notices.push_back("info string Cluster coordinator refused: different version or network");
+            return false;
+        }
+
+        c.verified = true;
+
+        if (!worker)
+            notices.push_back("info string Cluster worker connected, "
+                              + std::to_string(std::count_if(connections.begin(), connections.end(),
+                                               [](const auto& other) { return other->verified; }))
+                              + " workers");
+        return true;
+    }
+
+    switch (type)
+    {
+    case HelloMessage:
+        break;
+
+    case CommandMessage:
+        if (!worker || !accepted(std::string(data, size)))
+        {
+            notices.push_back("info string Cluster command refused: " + std::string(data, std::min(size, size_t(80))));
+            break;
+        }
+
+        commands.emplace_back(data, size);
+        if (commands.back().compare(0, 2, "go") == 0)
+        {
+            ++workerGoCount;
+            workerSearching = true;
+        }
+        cv.notify_all();
+        break;
+
+    case EntriesMessage:
+        // The entries are copied out, as they are not aligned in the buffer
+        if (size % sizeof(SharedEntry) == 0 && received.size() < MaxReceived)
+        {
+            const size_t count = received.size();
+            received.resize(count + size / sizeof(SharedEntry));
+            std::memcpy(static_cast<void*>(&received[count]), data, size);
+        }
+
+        // The coordinator relays the entries of a worker to the other ones
+        if (!worker)
+            for (auto& other : connections)
+                if (other.get() != &c && other->verified && other->out.size() < MaxQueuedBytes)
+                    append(*other, EntriesMessage, data, size);
+        break;
+
+    case StatusMessage:
+        if (size == 2 * sizeof(uint64_t))
+        {
+            std::memcpy(&c.nodes, data, sizeof(uint64_t));
+            std::memcpy(&c.tbHits, data + sizeof(uint64_t), sizeof(uint64_t));
+            update_remote_counts();
+        }
+        break;
+
+    case ResultMessage:
+        c.result.assign(data, size);
+        cv.notify_all();
+        break;
+    }
+
+    return true;
+  }
+
+#ifndef _WIN32
+
+  // configure() makes the socket of a connection non-blocking, and sends the
+  // small messages without delay
+  void configure(int fd) {
+
+    int one = 1;
+    setsockopt(fd, IPPROTO_TCP, TCP_NODELAY, &one, sizeof(one));
+#if defined(SO_NOSIGPIPE)
+    setsockopt(fd, SOL_SOCKET, SO_NOSIGPIPE, &one, sizeof(one));
+#endif
+    fcntl(fd, F_SETFL, fcntl(fd, F_GETFL, 0) | O_NONBLOCK);
+  }
+
+  // flush() sends as much as possible of the queued messages of a connection.
+  // Returns false if the connection is broken.
+  bool flush(Connection& c) {
+
+    ssize_t n = send(c.fd, c.out.data(), c.out.size(), MSG_NOSIGNAL);
+    if (n > 0)
+        c.out.erase(0, size_t(n));
+
+    return n >= 0 || errno == EAGAIN || errno == EWOULDBLOCK || errno == EINTR;
+  }
+
+  // receive() reads the available bytes of a connection and handles the
+  // complete messages. Returns false if the connection is closed or broken.
+  bool receive(Connection& c) {
+
+    char buffer[1 << 16];
+    ssize_t n;
+
+    while ((n = recv(c.fd, buffer, sizeof(buffer), 0)) > 0)
+        c.in.append(buffer, size_t(n));
+
+    if (n == 0 || (errno != EAGAIN && errno != EWOULDBLOCK && errno != EINTR))
+        return false;
+
+    size_t pos = 0;
+    MessageHeader header;
+
+    while (c.in.size() - pos >= sizeof(header))
+    {
+        std::memcpy(&header, c.in.data() + pos, sizeof(header));
+        if (header.size > MaxMessageSize)
+            return false;
+
+        if (c.in.size() - pos - sizeof(header) < header.size)
+            break;
+
+        if (!handle(c, MessageType(header.type), c.in.data() + pos + sizeof(header), header.size))
+            return false;
+
+        pos += sizeof(header) + header.size;
+    }
+
+    c.in.erase(0, pos);
+    return true;
+  }
+
+  // io_loop() is the loop of the thread sending and receiving the messages of
+  // all the connections, and accepting the new workers of the coordinator
+  void io_loop() {
+
+    std::vector<pollfd> fds;
+    TimePoint lastStatus = now();
+
+    while (!ioExit)
+    {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+
+            // Send the entries of the search threads to all the other processes
+            send_outgoing();
+
+            // A searching worker sends its node counts 10 times per second
+            if (worker && workerSearching && now() - lastStatus >= 100)
+            {
+                const uint64_t status[] = { Threads.nodes_searched(), Threads.tb_hits() };
+                for (auto& c : connections)
+                    if (c->verified)
+                        append(*c, StatusMessage, status, sizeof(status));
+
+                lastStatus = now();
+            }
+
+            fds.clear();
+            if (listenFd != -1)
+                fds.push_back({ listenFd, POLLIN, 0 });
+
+            for (auto& c : connections)
+                fds.push_back({ c->fd, short(POLLIN | (c->out.empty() ? 0 : POLLOUT)), 0 });
+        }
+
+        if (poll(fds.data(), nfds_t(fds.size()), 10) <= 0)
+            continue;
+
+        std::vector<std::string> messages;
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+
+            size_t first = 0;
+            if (listenFd != -1)
+            {
+                first = 1;
+                int fd;
+                if ((fds[0].revents & POLLIN) && (fd = accept(listenFd, nullptr, nullptr)) != -1)
+                {
+                    configure(fd);
+                    connections.push_back(std::make_unique<Connection>(fd));
+                    hello(*connections.back());
+                }
+            }
+
+            // The new connections are after the polled ones
+            for (size_t i = first; i < fds.size(); ++i)
+            {
+                Connection& c = *connections[i - first];
+
+                if (   ((fds[i].revents & POLLOUT) && !flush(c))
+                    || ((fds[i].revents & POLLIN)  && !receive(c))
+                    || (fds[i].revents & (POLLERR | POLLNVAL)))
+                    c.closed = true;
+            }
+
+            for (auto it = connections.begin(); it != connections.end(); )
+                if ((*it)->closed)
+                {
+                    const bool verified = (*it)->verified;
+                    ::close((*it)->fd);
+                    it = connections.erase(it);
+
+                    if (worker)
+                    {
+                        // Without its coordinator, a worker has nothing left to do
+                        commands.emplace_back("quit");
+                        notices.push_back("info string Cluster coordinator disconnected");
+                    }
+                    else if (verified)
+                        notices.push_back("info string Cluster worker disconnected, "
+                                          + std::to_string(std::count_if(connections.begin(), connections.end(),
+                                                           [](const auto& c) { return c->verified; }))
+                                          + " workers");
+                    else
+                        notices.push_back("info string Cluster worker refused: different version or network");
+                    cv.notify_all();
+                }
+                else
+                    ++it;
+
+            update_remote_counts();
+            connected = !connections.empty();
+            messages.swap(notices);
+        }
+
+        for (const std::string& m : messages)
+            sync_cout << m << sync_endl;
+    }
+  }
+
+#endif
+
+  // start() starts the I/O thread, after a connection or listening socket has
+  // been set up
+  void start() {
+
+    ioExit = false;
+    connected = !connections.empty();
+#ifndef _WIN32
+    ioThread = std::thread(io_loop);
+#endif
+  }
+
+} // namespace
+
+
+/// Cluster::disconnect() stops the I/O thread and closes all the connections,
+/// which leaves the cluster mode.
+
+void disconnect() {
+
+  ioExit = true;
+  if (ioThread.joinable())
+      ioThread.join();
+
+  std::lock_guard<std::mutex> lock(mutex);
+
+#ifndef _WIN32
+  for (auto& c : connections)
+      ::close(c->fd);
+
+  if (listenFd != -1)
+      ::close(listenFd);
+#endif
+
+  connections.clear();
+  listenFd = -1;
+  worker = workerSearching = false;
+  connected = false;
+  remoteNodes = remoteTbHits = 0;
+}
+
+
+/// Cluster::listen() makes this process the coordinator of a cluster, which
+/// accepts workers on the given local address and TCP port. Port 0 leaves the
+/// cluster mode. Only the workers running the same version of the engine, with
+/// the same network, are accepted.
+
+void listen(const std::string& address, int port) {
+
+  disconnect();
+
+  if (!port)
+      return;
+
+#if defined(_WIN32)
+  (void)address;
+  sync_cout << "info string Cluster mode is not supported on this platform" << sync_endl;
+#else
+  addrinfo hints = {}, *addresses;
+  hints.ai_family = AF_UNSPEC;
+  hints.ai_socktype = SOCK_STREAM;
+  hints.ai_flags = AI_PASSIVE;
+
+  int fd = -1, one = 1;
+
+  if (getaddrinfo(address.c_str(), std::to_string(port).c_str(), &hints, &addresses) == 0)
+  {
+      for (addrinfo* a = addresses; a && fd == -1; a = a->ai_next)
+          if (   (fd = socket(a->ai_family, a->ai_socktype, a->ai_protocol)) != -1
+              && (   setsockopt(fd, SOL_SOCKET, SO_REUSEADDR, &one, sizeof(one)) == -1
+                  || bind(fd, a->ai_addr, a->ai_addrlen) == -1
+                  || ::listen(fd, 64) == -1))
+          {
+              ::close(fd);
+              fd = -1;
+          }
+
+      freeaddrinfo(addresses);
+  }
+
+  if (fd == -1)
+  {
+      sync_cout << "info string Could not listen for cluster workers on "
+                << address << ":" << port << sync_endl;
+      return;
+  }
+
+  fcntl(fd, F_SETFL, fcntl(fd, F_GETFL, 0) | O_NONBLOCK);
+  listenFd = fd;
+  start();
+#endif
+}
+
+
+/// Cluster::join() connects this process, as a worker, to the coordinator
+/// listening on the given host and port. The worker then executes the commands
+/// of the coordinator, see receive_command(). Returns false if the connection
+/// failed.
+
+bool join(const std::string& host, int port) {
+
+  disconnect();
+
+#if defined(_WIN32)
+  (void)host, (void)port;
+  sync_cout << "info string Cluster mode is not supported on this platform" << sync_endl;
+  return false;
+#else
+  addrinfo hints = {}, *addresses;
+  hints.ai_family = AF_UNSPEC;
+  hints.ai_socktype = SOCK_STREAM;
+
+  int fd = -1;
+
+  if (getaddrinfo(host.c_str(), std::to_string(port).c_str(), &hints, &addresses) == 0)
+  {
+      for (addrinfo* a = addresses; a && fd == -1; a = a->ai_next)
+          if (   (fd = socket(a->ai_family, a->ai_socktype, a->ai_protocol)) != -1
+              && connect(fd, a->ai_addr, a->ai_addrlen) == -1)
+          {
+              ::close(fd);
+              fd = -1;
+          }
+
+      freeaddrinfo(addresses);
+  }
+
+  if (fd == -1)
+  {
+      sync_cout << "info string Could not connect to the cluster coordinator "
+                << host << ":" << port << sync_endl;
+      return false;
+  }
+
+  configure(fd);
+
+  {
+      std::lock_guard<std::mutex> lock(mutex);
+
+      worker = true;
+      workerGoCount = 0;
+      commands.clear();
+      connections.push_back(std::make_unique<Connection>(fd));
+      hello(*connections.back());
+  }
+
+  sync_cout << "info string Connected to the cluster coordinator "
+            << host << ":" << port << sync_endl;
+
+  start();
+  return true;
+#endif
+}
+
+
+/// Cluster::is_worker() returns whether this process is a worker of a cluster
+
+bool is_worker() {
+  return worker.load(std::memory_order_relaxed);
+}
+
+
+/// Cluster::receive_command() waits for the next command of the coordinator.
+/// It is "quit" when the coordinator is gone.
+
+bool receive_command(std::string& cmd) {
+
+  std::unique_lock<std::mutex> lock(mutex);
+  cv.wait(lock, []{ return !commands.empty(); });
+
+  cmd = commands.front();
+  commands.pop_front();
+  return true;
+}
+
+
+/// Cluster::broadcast() sends a command to all the workers
+
+void broadcast(const std::string& cmd) {
+
+  std::lock_guard<std::mutex> lock(mutex);
+
+  if (!worker)
+      for (auto& c : connections)
+          if (c->verified)
+              append(*c, cmd);
+}
+
+
+/// Cluster::position() records the last "position" command, which is sent to
+/// the workers with each search.
+
+void position(const std::string& cmd) {
+
+  std::lock_guard<std::mutex> lock(mutex);
+  positionCmd = cmd;
+}
+
+
+/// Cluster::go() starts the search of the workers on the position of the last
+/// "position" command, with the same root moves. The workers search until the
+/// coordinator stops them in finish_search().
+
+void go(const Search::LimitsType& limits) {
+
+  if (limits.perft)
+      return;
+
+  const std::string chess960 =  std::string("setoption name UCI_Chess960 value ")
+                              + (Options["UCI_Chess960"] ? "true" : "false");
+  std::string cmd = "go infinite";
+
+  if (!limits.searchmoves.empty())
+  {
+      cmd += " searchmoves";
+      for (Move m : limits.searchmoves)
+          cmd += " " + UCI::move(m, Options["UCI_Chess960"]);
+  }
+
+  std::lock_guard<std::mutex> lock(mutex);
+
+  if (worker)
+      return;
+
+  for (auto& c : connections)
+  {
+      if (!c->verified)
+          continue;
+
+      append(*c, chess960);
+      append(*c, positionCmd);
+      append(*c, cmd);
+      ++c->goCount;
+      c->searching = true;
+      c->result.clear();
+      c->nodes = c->tbHits = 0;
+  }
+
+  update_remote_counts();
+}
+
+
+/// Cluster::finish_search() stops the search of the workers and waits for
+/// their results. If vote is set, the best move of each worker takes part in
+/// the vote of ThreadPool::get_best_thread() with the one of the given best
+/// thread of this process, and the result of the worker winning the vote, if
+/// any, is returned in best. The results arriving after timeout milliseconds
+/// are ignored. Returns whether a worker won.
+
+bool finish_search(const Thread* bestThread, bool vote, TimePoint timeout, Result& best) {
+
+  std::vector<Result> results;
+  std::vector<std::string> texts;
+
+  {
+      std::unique_lock<std::mutex> lock(mutex);
+
+      // The last entries of this process go before the stop
+      send_outgoing();
+
+      for (auto& c : connections)
+          if (c->searching)
+              append(*c, "stop");
+
+      // The result of a worker starts with the number of its searches
+      auto done = [](const Connection& c) {
+          std::istringstream is(c.result);
+          int goCount = 0;
+          return !c.searching || (is >> goCount && goCount == c.goCount);
+      };
+
+      cv.wait_for(lock, std::chrono::milliseconds(timeout), [&]{
+          return std::all_of(connections.begin(), connections.end(),
+                             [&](const auto& c) { return done(*c); });
+      });
+
+      for (auto& c : connections)
+          if (c->searching)
+          {
+              if (done(*c))
+                  texts.push_back(c->result);
+              c->searching = false;
+          }
+  }
+
+  if (!vote || texts.empty())
+      return false;
+
+  const Position& rootPos = bestThread->rootPos;
+  const Search::RootMove& rm = bestThread->rootMoves[0];
+  results.push_back({ bestThread->completedDepth, rm.selDepth, rm.score, rm.pv });
+
+  for (const std::string& text : texts)
+  {
+      std::istringstream is(text);
+      std::string token;
+      int goCount, score;
+      Result r;
+
+      is >> goCount >> r.depth >> r.selDepth >> score;
+      r.score = Value(score);
+
+      // Keep the legal moves of the pv of the worker
+      StateInfo states[MAX_PLY];
+      Position pos;
+      pos.set(rootPos.fen(), rootPos.is_chess960(), &states[0], Threads.scratch());
+
+      Move m;
+      while (   r.pv.size() < MAX_PLY - 1
+             && is >> token
+             && (m = UCI::to_move(pos, token)) != MOVE_NONE)
+      {
+          r.pv.push_back(m);
+          pos.do_move(m, states[r.pv.size()]);
+      }
+
+      // The line must start with a root move of this process, as with searchmoves
+      const Search::RootMoves& rootMoves = bestThread->rootMoves;
+      if (!r.pv.empty() && std::find(rootMoves.begin(), rootMoves.end(), r.pv[0]) != rootMoves.end())
+          results.push_back(r);
+  }
+
+  // Vote according to score and depth, as in ThreadPool::get_best_thread()
+  std::map<Move, int64_t> votes;
+  Value minScore = VALUE_NONE;
+  size_t bestIdx = 0;
+
+  for (const Result& r : results)
+      minScore = std::min(minScore, r.score);
+
+  for (size_t i = 0; i < results.size(); ++i)
+  {
+      const Result& r = results[i];
+      votes[r.pv[0]] += (r.score - minScore + 14) * int(r.depth);
+
+      if (abs(results[bestIdx].score) >= VALUE_TB_WIN_IN_MAX_PLY)
+      {
+          if (r.score > results[bestIdx].score)
+              bestIdx = i;
+      }
+      else if (   r.score >= VALUE_TB_WIN_IN_MAX_PLY
+               || (   r.score > VALUE_TB_LOSS_IN_MAX_PLY
+                   && votes[r.pv[0]] > votes[results[bestIdx].pv[0]]))
+          bestIdx = i;
+  }
+
+  if (bestIdx == 0)
+      return false;
+
+  best = results[bestIdx];
+  return true;
+}
+
+
+/// Cluster::send_result() sends the result of the search of a worker to the
+/// coordinator: the best move, score and depth of its best thread, with its pv.
+
+void send_result(const Thread* bestThread) {
+
+  const Search::RootMove& rm = bestThread->rootMoves[0];
+  const bool chess960 = bestThread->rootPos.is_chess960();
+
+  std::lock_guard<std::mutex> lock(mutex);
+
+  if (!worker || !workerSearching)
+      return;
+
+  // The last entries of this process go before the result
+  send_outgoing();
+
+  std::string text =  std::to_string(workerGoCount)
+                    + " " + std::to_string(bestThread->completedDepth)
+                    + " " + std::to_string(rm.selDepth)
+                    + " " + std::to_string(rm.score);
+
+  for (Move m : rm.pv)
+      text += " " + UCI::move(m, chess960);
+
+  for (auto& c : connections)
+      append(*c, ResultMessage, text.data(), text.size());
+
+  workerSearching = false;
+}
+
+
+/// Cluster::active() returns whether this process is connected to others, and
+/// so shares its transposition table entries.
+
+bool active() {
+  return connected.load(std::memory_order_relaxed);
+}
+
+
+/// Cluster::share() queues a transposition table entry to be sent to the other
+/// processes. The entries are first gathered per search thread, and then
+/// passed to the I/O thread in batches.
+
+void share(Key key, Value v, bool pv, Bound b, Depth d, Move m, Value ev) {
+
+  staging.push_back({ key, int16_t(v), int16_t(ev), uint16_t(m),
+                      uint8_t(d - DEPTH_OFFSET), uint8_t(uint8_t(pv) << 2 | b) });
+
+  if (staging.size() >= BatchSize)
+      flush_shared();
+}
+
+
+/// Cluster::flush_shared() passes the entries gathered by share() on the current
+/// thread to the I/O thread. It is called by each search thread when its search
+/// ends, so that the entries of an incomplete batch are not left behind.
+
+void flush_shared() {
+
+  if (staging.empty())
+      return;
+
+  std::lock_guard<std::mutex> lock(mutex);
+
+  if (outgoing.size() < MaxReceived)
+      outgoing.insert(outgoing.end(), staging.begin(), staging.end());
+
+  staging.clear();
+}
+
+
+/// Cluster::store_received() stores the entries received from the other
+/// processes in the transposition table. It is called by the main thread during
+/// the search, so that the table is not resized meanwhile.
+
+void store_received() {
+
+  std::vector<SharedEntry> entries;
+  {
+      std::lock_guard<std::mutex> lock(mutex);
+      entries.swap(received);
+  }
+
+  for (const SharedEntry& e : entries)
+  {
+      const Depth d = Depth(e.depth8) + DEPTH_OFFSET;
+      bool found;
+      TTEntry* tte = TT.probe(e.key, found);
+
+      if (!found || tte->depth() < d)
+          tte->save(e.key, Value(e.value), e.pvBound & 0x4, Bound(e.pvBound & 0x3),
+                    d, Move(e.move), Value(e.eval));
+  }
+}
+
+
+/// Cluster::nodes_searched() and Cluster::tb_hits() add the last counts sent
+/// by the workers to the ones of this process.
+
+uint64_t nodes_searched() {
+  return Threads.nodes_searched() + remoteNodes.load(std::memory_order_relaxed);
+}
+
+uint64_t tb_hits() {
+  return Threads.tb_hits() + remoteTbHits.load(std::memory_order_relaxed);
+}
+
+} // namespace Stockfish::Cluster
@@ -0,0 +1,77 @@
+/*
+  Stockfish, a UCI chess playing engine derived from Glaurung 2.1
+  Copyright (C) 2004-2021 The Stockfish developers (see AUTHORS file)
+
+  Stockfish is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Stockfish is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+#ifndef CLUSTER_H_INCLUDED
+#define CLUSTER_H_INCLUDED
+
+#include <string>
+#include <vector>
+
+#include "search.h"
+#include "types.h"
+
+namespace Stockfish {
+
+class Thread;
+
+/// The Cluster namespace lets several processes, on one or several hosts,
+/// search the same position. A coordinator, the process driven by the GUI,
+/// listens on a TCP port. Workers connect to it and receive its commands.
+/// While they search, all the processes exchange the transposition table
+/// entries of the deep nodes, and when the search stops the best move of
+/// each process takes part in the vote of the coordinator for its best move.
+
+namespace Cluster {
+
+// Minimum depth of the entries sent to the other processes
+constexpr Depth ShareMinDepth = 8;
+
+// Result of the search of a worker: its best line, from one of the root moves
+// of the coordinator, with its score and depth
+struct Result {
+  Depth depth;
+  int selDepth;
+  Value score;
+  std::vector<Move> pv;
+};
+
+void listen(const std::string& address, int port);
+bool join(const std::string& host, int port);
+void disconnect();
+bool is_worker();
+bool receive_command(std::string& cmd);
+void broadcast(const std::string& cmd);
+
+void position(const std::string& cmd);
+void go(const Search::LimitsType& limits);
+bool finish_search(const Thread* bestThread, bool vote, TimePoint timeout, Result& best);
+void send_result(const Thread* bestThread);
+
+bool active();
+void share(Key key, Value v, bool pv, Bound b, Depth d, Move m, Value ev);
+void flush_shared();
+void store_received();
+
+uint64_t nodes_searched();
+uint64_t tb_hits();
+
+} // namespace Cluster
+
+} // namespace Stockfish
+
+#endif // #ifndef CLUSTER_H_INCLUDED
@@ -0,0 +1,117 @@
+/*
+  Stockfish, a UCI chess playing engine derived from Glaurung 2.1
+  Copyright (C) 2004-2021 The Stockfish developers (see AUTHORS file)
+
+  Stockfish is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Stockfish is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Entry point of the binaries built with "make dispatch-build". The whole
+// engine is compiled once per x86-64 architecture listed in DISPATCH_ARCHS,
+// and each of these builds is linked in as a single object which only exports
+// its main() function, renamed to sf_main_<arch>, and keeps its static
+// initializers in a section named sf_init_<arch>. At startup we pick the best
+// build supported by the CPU, run its initializers and hand over to it.
+
+#include <cstdio>
+
+#include "evaluate.h"
+#include "incbin/incbin.h"
+
+// The builds share a single copy of the embedded network, see evaluate.cpp
+#if !defined(NNUE_EMBEDDING_OFF)
+  INCBIN(EmbeddedNNUE, EvalFileDefaultName);
+#endif
+
+namespace {
+
+typedef void (*InitFunc)();
+
+struct Build {
+  bool (*supported)();
+  int (*main)(int, char**);
+  InitFunc* initBegin;
+  InitFunc* initEnd;
+};
+
+// The CPU features needed by each of the architectures that DISPATCH_ARCHS may
+// list, those it is compiled with in the Makefile. The VNNI builds also need
+// AVX512VL and AVX512DQ: vnni256 runs the VNNI instructions on 256-bit vectors,
+// but with their AVX-512 encodings, so that it cannot run on the CPUs with only
+// the AVX-VNNI extension. On AMD CPUs before Zen 3 pext is microcoded and much
+// slower than our magic bitboards, so the BMI2 builds are only picked for the
+// other CPUs.
+#define HAS(feature) __builtin_cpu_supports(feature)
+
+#define SUPPORTED_x86_64_vnni512      HAS("avx512f") && HAS("avx512bw") && HAS("avx512vnni") \
+                                      && HAS("avx512dq") && HAS("avx512vl") && fast_pext()
+#define SUPPORTED_x86_64_vnni256      HAS("avx2") && HAS("avx512vnni") && HAS("avx512vl") \
+                                      && HAS("avx512bw") && HAS("avx512dq") && fast_pext()
+#define SUPPORTED_x86_64_avx512       HAS("avx512f") && HAS("avx512bw") && fast_pext()
+#define SUPPORTED_x86_64_bmi2         HAS("avx2") && HAS("popcnt") && fast_pext()
+#define SUPPORTED_x86_64_avx2         HAS("avx2") && HAS("popcnt")
+#define SUPPORTED_x86_64_sse41_popcnt HAS("sse4.1") && HAS("popcnt")
+#define SUPPORTED_x86_64_modern       HAS("sse4.1") && HAS("popcnt")
+#define SUPPORTED_x86_64_ssse3        HAS("ssse3")
+#define SUPPORTED_x86_64_sse3_popcnt  HAS("sse3") && HAS("popcnt")
+#define SUPPORTED_x86_64              true
+
+inline bool fast_pext() {
+  return HAS("bmi2") && !__builtin_cpu_is("znver1") && !__builtin_cpu_is("znver2");
+}
+
+// DISPATCH_BUILDS is defined by the Makefile from DISPATCH_ARCHS, as the list
+// BUILD(x86_64_vnni512) BUILD(x86_64_avx512) ... from the fastest to the most
+// portable build, which we expand once to declare the symbols of the builds
+// and once to list them. The __start_ and __stop_ symbols are defined by the
+// linker around the sections of the initializers.
+#if !defined(DISPATCH_BUILDS)
+#error "DISPATCH_BUILDS must be defined, build with make dispatch-build"
+#endif
+
+#define BUILD(name) \
+  extern "C" int sf_main_##name(int, char**); \
+  extern "C" InitFunc __start_sf_init_##name[]; \
+  extern "C" InitFunc __stop_sf_init_##name[];
+
+DISPATCH_BUILDS
+
+#undef BUILD
+#define BUILD(name) \
+  { []{ return bool(SUPPORTED_##name); }, sf_main_##name, __start_sf_init_##name, __stop_sf_init_##name },
+
+const Build Builds[] = { DISPATCH_BUILDS };
+
+} // namespace
+
+
+/// main() runs the first build of the binary that the CPU supports,
+/// after having run the static initializers of its translation units, which
+/// may already use the instructions of its architecture.
+
+int main(int argc, char* argv[]) {
+
+  __builtin_cpu_init();
+
+  for (const Build& b : Builds)
+      if (b.supported())
+      {
+          for (InitFunc* f = b.initBegin; f != b.initEnd; ++f)
+              (*f)();
+
+          return b.main(argc, argv);
+      }
+
+  std::fprintf(stderr, "No build of the engine is supported by this CPU\n");
+  return 1;
+}
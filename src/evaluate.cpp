@@ -34,6 +34,7 @@
 #include "pawns.h"
 #include "thread.h"
 #include "timeman.h"
+#include "tt.h"
 #include "uci.h"
 #include "incbin/incbin.h"
 
@@ -44,8 +45,12 @@
 //     const unsigned char        gEmbeddedNNUEData[];  // a pointer to the embedded data
 //     const unsigned char *const gEmbeddedNNUEEnd;     // a marker to the end
 //     const unsigned int         gEmbeddedNNUESize;    // the size of the embedded file
-// Note that this does not work in Microsoft Visual Studio.
-#if !defined(_MSC_VER) && !defined(NNUE_EMBEDDING_OFF)
+// Note that this does not work in Microsoft Visual Studio. The builds linked
+// in a binary made with "make dispatch-build" share the data embedded once by
+// dispatch.cpp.
+#if !defined(_MSC_VER) && !defined(NNUE_EMBEDDING_OFF) && defined(DISPATCH_ARCH)
+  INCBIN_EXTERN(EmbeddedNNUE);
+#elif !defined(_MSC_VER) && !defined(NNUE_EMBEDDING_OFF)
   INCBIN(EmbeddedNNUE, EvalFileDefaultName);
 #else
   const unsigned char        gEmbeddedNNUEData[1] = {0x0};
@@ -61,11 +66,21 @@ namespace Stockfish {
 namespace Eval {
 
   bool useNNUE;
-  string eval_file_loaded = "None";
+  string eval_file_loaded[NNUE::NetCount] = { "None", "None" };
+
+  namespace {
+
+    // Options giving the file of each network
+    const char* EvalFileOptions[NNUE::NetCount] = { "EvalFile", "EvalFile Endgame" };
+
+    bool is_set(const string& evalFile) { return !evalFile.empty() && evalFile != "<empty>"; }
+
+  } // namespace
 
   /// NNUE::init() tries to load a NNUE network at startup time, or when the engine
   /// receives a UCI command "setoption name EvalFile value nn-[a-z0-9]{12}.nnue"
-  /// The name of the NNUE network is always retrieved from the EvalFile option.
+  /// The name of the NNUE network is always retrieved from the EvalFile option,
+  /// and the name of the optional network of the endgames from EvalFile Endgame.
   /// We search the given network in three locations: internally (the default
   /// network may be embedded in the binary), in the active working directory and
   /// in the engine directory. Distro packagers may define the DEFAULT_NNUE_DIRECTORY
@@ -77,8 +92,6 @@ namespace Eval {
     if (!useNNUE)
         return;
 
-    string eval_file = string(Options["EvalFile"]);
-
     #if defined(DEFAULT_NNUE_DIRECTORY)
     #define stringify2(x) #x
     #define stringify(x) stringify2(x)
@@ -87,59 +100,88 @@ namespace Eval {
     vector<string> dirs = { "<internal>" , "" , CommandLine::binaryDirectory };
     #endif
 
-    for (string directory : dirs)
-        if (eval_file_loaded != eval_file)
-        {
-            if (directory != "<internal>")
-            {
-                ifstream stream(directory + eval_file, ios::binary);
-                if (load_eval(eval_file, stream))
-                    eval_file_loaded = eval_file;
-            }
+    for (NetIndex idx : { MainNet, EndgameNet })
+    {
+        string eval_file = string(Options[EvalFileOptions[idx]]);
+
+        if (!is_set(eval_file))
+            continue;
 
-            if (directory == "<internal>" && eval_file == EvalFileDefaultName)
+        for (string directory : dirs)
+            if (eval_file_loaded[idx] != eval_file)
             {
-                // C++ way to prepare a buffer for a memory stream
-                class MemoryBuffer : public basic_streambuf<char> {
-                    public: MemoryBuffer(char* p, size_t n) { setg(p, p, p + n); setp(p, p + n); }
-                };
+                if (directory != "<internal>")
+                {
+                    // Network images are mapped in place, other files are read
+                    if (load_eval_image(eval_file, directory + eval_file, idx))
+                        eval_file_loaded[idx] = eval_file;
+                    else
+                    {
+                        ifstream stream(directory + eval_file, ios::binary);
+                        if (load_eval(eval_file, stream, idx))
+                            eval_file_loaded[idx] = eval_file;
+                    }
+                }
+
+                if (directory == "<internal>" && eval_file == EvalFileDefaultName)
+                {
+                    // C++ way to prepare a buffer for a memory stream
+                    class MemoryBuffer : public basic_streambuf<char> {
+                        public: MemoryBuffer(char* p, size_t n) { setg(p, p, p + n); setp(p, p + n); }
+                    };
 
-                MemoryBuffer buffer(const_cast<char*>(reinterpret_cast<const char*>(gEmbeddedNNUEData)),
-                                    size_t(gEmbeddedNNUESize));
+                    MemoryBuffer buffer(const_cast<char*>(reinterpret_cast<const char*>(gEmbeddedNNUEData)),
+                                        size_t(gEmbeddedNNUESize));
 
-                istream stream(&buffer);
-                if (load_eval(eval_file, stream))
-                    eval_file_loaded = eval_file;
+                    istream stream(&buffer);
+                    if (load_eval(eval_file, stream, idx))
+                        eval_file_loaded[idx] = eval_file;
+                }
             }
-        }
+    }
+
+    // The endgame network is used only once loaded
+    string endgame_file = string(Options["EvalFile Endgame"]);
+    endgamePieces = is_set(endgame_file) && eval_file_loaded[EndgameNet] == endgame_file
+                  ? int(Options["Endgame Net Pieces"]) : 0;
   }
 
-  /// NNUE::verify() verifies that the last net used was loaded successfully
+  /// NNUE::verify() verifies that the last nets used were loaded successfully
   void NNUE::verify() {
 
     string eval_file = string(Options["EvalFile"]);
+    string endgame_file = string(Options["EvalFile Endgame"]);
 
-    if (useNNUE && eval_file_loaded != eval_file)
+    for (NetIndex idx : { MainNet, EndgameNet })
     {
-        UCI::OptionsMap defaults;
-        UCI::init(defaults);
-
-        string msg1 = "If the UCI option \"Use NNUE\" is set to true, network evaluation parameters compatible with the engine must be available.";
-        string msg2 = "The option is set to true, but the network file " + eval_file + " was not loaded successfully.";
-        string msg3 = "The UCI option EvalFile might need to specify the full path, including the directory name, to the network file.";
-        string msg4 = "The default net can be downloaded from: https://tests.stockfishchess.org/api/nn/" + string(defaults["EvalFile"]);
-        string msg5 = "The engine will be terminated now.";
-
-        sync_cout << "info string ERROR: " << msg1 << sync_endl;
-        sync_cout << "info string ERROR: " << msg2 << sync_endl;
-        sync_cout << "info string ERROR: " << msg3 << sync_endl;
-        sync_cout << "info string ERROR: " << msg4 << sync_endl;
-        sync_cout << "info string ERROR: " << msg5 << sync_endl;
-
-        exit(EXIT_FAILURE);
+        string file = string(Options[EvalFileOptions[idx]]);
+
+        if (useNNUE && (idx == MainNet || is_set(file)) && eval_file_loaded[idx] != file)
+        {
+            UCI::OptionsMap defaults;
+            UCI::init(defaults);
+
+            string option = EvalFileOptions[idx];
+            string msg1 = "If the UCI option \"Use NNUE\" is set to true, network evaluation parameters compatible with the engine must be available.";
+            string msg2 = "The option is set to true, but the network file " + file + " was not loaded successfully.";
+            string msg3 = "The UCI option " + option + " might need to specify the full path, including the directory name, to the network file.";
+            string msg4 = "The default net can be downloaded from: https://tests.stockfishchess.org/api/nn/" + string(defaults["EvalFile"]);
+            string msg5 = "The engine will be terminated now.";
+
+            sync_cout << "info string ERROR: " << msg1 << sync_endl;
+            sync_cout << "info string ERROR: " << msg2 << sync_endl;
+            sync_cout << "info string ERROR: " << msg3 << sync_endl;
+            sync_cout << "info string ERROR: " << msg4 << sync_endl;
+            sync_cout << "info string ERROR: " << msg5 << sync_endl;
+
+            exit(EXIT_FAILURE);
+        }
     }
 
-    if (useNNUE)
+    if (useNNUE && endgamePieces)
+        sync_cout << "info string NNUE evaluation using " << eval_file << " enabled, and "
+                  << endgame_file << " with at most " << endgamePieces << " pieces" << sync_endl;
+    else if (useNNUE)
         sync_cout << "info string NNUE evaluation using " << eval_file << " enabled" << sync_endl;
     else
         sync_cout << "info string classical evaluation enabled" << sync_endl;
@@ -1078,9 +1120,12 @@ make_v:
 
 /// evaluate() is the evaluator for the outer world. It returns a static
 /// evaluation of the position from the point of view of the side to move.
+/// With the Hash Stats option, the evaluations are counted, see TTStats.
 
 Value Eval::evaluate(const Position& pos) {
 
+  TT.count_eval(pos.key());
+
   Value v;
 
   if (!Eval::useNNUE)
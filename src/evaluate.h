@@ -33,8 +33,15 @@ namespace Eval {
   std::string trace(Position& pos);
   Value evaluate(const Position& pos);
 
+  namespace NNUE {
+
+    // The main network, and the optional one of the positions with few pieces
+    enum NetIndex { MainNet, EndgameNet, NetCount };
+
+  } // namespace NNUE
+
   extern bool useNNUE;
-  extern std::string eval_file_loaded;
+  extern std::string eval_file_loaded[NNUE::NetCount];
 
   // The default net name MUST follow the format nn-[SHA256 first 12 digits].nnue
   // for the build process (profile-build and fishtest) to work. Do not change the
@@ -45,13 +52,20 @@ namespace Eval {
 
     std::string trace(Position& pos);
     Value evaluate(const Position& pos, bool adjusted = false);
+    uint64_t evaluate_batch(std::istream& fens, std::ostream& out, bool binary);
+    void benchmark(int iterations);
+
+    extern int endgamePieces;
 
     void init();
     void verify();
 
-    bool load_eval(std::string name, std::istream& stream);
-    bool save_eval(std::ostream& stream);
-    bool save_eval(const std::optional<std::string>& filename);
+    bool load_eval(std::string name, std::istream& stream, NetIndex idx = MainNet);
+    bool save_eval(std::ostream& stream, bool compressed = false);
+    bool save_eval(const std::optional<std::string>& filename, bool compressed = false);
+    bool load_eval_image(std::string name, const std::string& path, NetIndex idx = MainNet);
+    bool save_eval_image(const std::string& filename);
+    std::uint64_t net_hash();
 
   } // namespace NNUE
 
@@ -19,6 +19,7 @@
 #include <iostream>
 
 #include "bitboard.h"
+#include "cluster.h"
 #include "endgame.h"
 #include "position.h"
 #include "psqt.h"
@@ -48,6 +49,7 @@ int main(int argc, char* argv[]) {
 
   UCI::loop(argc, argv);
 
+  Cluster::disconnect();
   Threads.set(0);
   return 0;
 }
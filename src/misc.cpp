@@ -39,6 +39,7 @@ typedef bool(*fun3_t)(HANDLE, CONST GROUP_AFFINITY*, PGROUP_AFFINITY);
 }
 #endif
 
+#include <algorithm>
 #include <fstream>
 #include <iomanip>
 #include <iostream>
@@ -46,7 +47,15 @@ typedef bool(*fun3_t)(HANDLE, CONST GROUP_AFFINITY*, PGROUP_AFFINITY);
 #include <vector>
 #include <cstdlib>
 
+#ifndef _WIN32
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#endif
+
 #if defined(__linux__) && !defined(__ANDROID__)
+#include <sched.h>
 #include <stdlib.h>
 #include <sys/mman.h>
 #endif
@@ -261,10 +270,21 @@ std::string compiler_info() {
     compiler += " NEON";
   #endif
 
+  #if defined(TT_KEY32)
+    compiler += " TTKEY32";
+  #endif
+  #if defined(TT_CHECK)
+    compiler += " TTCHECK";
+  #endif
+
   #if !defined(NDEBUG)
     compiler += " DEBUG";
   #endif
 
+  #if defined(DISPATCH_ARCH)
+    compiler += "\nBuild selected at startup for this CPU: " stringify(DISPATCH_ARCH);
+  #endif
+
   compiler += "\n__VERSION__ macro expands to: ";
   #ifdef __VERSION__
      compiler += __VERSION__;
@@ -485,9 +505,258 @@ void aligned_large_pages_free(void *mem) {
 #endif
 
 
-namespace WinProcGroup {
+/// map_file() memory maps a file. When 'write' is true the file is created
+/// (or truncated) with the given size, otherwise an existing file is mapped
+/// read-only and its size is returned in 'size'. Returns nullptr on failure.
+
+void* map_file(const std::string& fname, size_t& size, bool write) {
 
 #ifndef _WIN32
+  struct stat statbuf;
+  int fd = ::open(fname.c_str(), write ? O_RDWR | O_CREAT | O_TRUNC : O_RDONLY, 0644);
+
+  if (fd == -1)
+      return nullptr;
+
+  if (write ? ftruncate(fd, off_t(size)) == -1 : fstat(fd, &statbuf) == -1)
+  {
+      ::close(fd);
+      return nullptr;
+  }
+
+  if (!write)
+      size = size_t(statbuf.st_size);
+
+  void* mem = size ? mmap(nullptr, size, write ? PROT_READ | PROT_WRITE : PROT_READ,
+                          MAP_SHARED, fd, 0) : MAP_FAILED;
+  ::close(fd);
+
+  return mem == MAP_FAILED ? nullptr : mem;
+#else
+  HANDLE fd = CreateFile(fname.c_str(), write ? GENERIC_READ | GENERIC_WRITE : GENERIC_READ,
+                         FILE_SHARE_READ, nullptr, write ? CREATE_ALWAYS : OPEN_EXISTING,
+                         FILE_FLAG_SEQUENTIAL_SCAN, nullptr);
+
+  if (fd == INVALID_HANDLE_VALUE)
+      return nullptr;
+
+  if (!write)
+  {
+      DWORD size_high;
+      DWORD size_low = GetFileSize(fd, &size_high);
+      size = size_t((uint64_t(size_high) << 32) | size_low);
+  }
+
+  HANDLE mmap = size ? CreateFileMapping(fd, nullptr, write ? PAGE_READWRITE : PAGE_READONLY,
+                                         DWORD(uint64_t(size) >> 32), DWORD(size), nullptr)
+                     : nullptr;
+  CloseHandle(fd);
+
+  if (!mmap)
+      return nullptr;
+
+  // The view keeps a reference to the mapping object, so we can close it now
+  void* mem = MapViewOfFile(mmap, write ? FILE_MAP_WRITE : FILE_MAP_READ, 0, 0, 0);
+  CloseHandle(mmap);
+
+  return mem;
+#endif
+}
+
+
+/// unmap_file() releases a mapping obtained with map_file().
+
+void unmap_file(void* mem, size_t size) {
+
+#ifndef _WIN32
+  munmap(mem, size);
+#else
+  (void)size;
+  UnmapViewOfFile(mem);
+#endif
+}
+
+
+/// available_memory() returns the size of the physical memory that can still
+/// be allocated without swapping, or SIZE_MAX if it is not known. On Linux the
+/// limit of the memory cgroup of the process, as in a container, is included.
+
+size_t available_memory() {
+
+#if defined(_WIN32)
+  MEMORYSTATUSEX status;
+  status.dwLength = sizeof(status);
+  return GlobalMemoryStatusEx(&status) ? size_t(status.ullAvailPhys) : SIZE_MAX;
+#elif defined(__linux__) && !defined(__ANDROID__)
+  size_t available = SIZE_MAX;
+  std::ifstream meminfo("/proc/meminfo");
+  std::string line, key;
+
+  while (std::getline(meminfo, line))
+  {
+      std::istringstream ss(line);
+      size_t kb;
+      if (ss >> key >> kb && key == "MemAvailable:")
+          available = kb * 1024;
+  }
+
+  // Cgroup v2: the limit is "max" when there is none
+  std::ifstream maxFile("/sys/fs/cgroup/memory.max"), currentFile("/sys/fs/cgroup/memory.current");
+  size_t limit, current;
+  if (maxFile >> limit && currentFile >> current)
+      available = std::min(available, limit > current ? limit - current : 0);
+
+  return available;
+#else
+  return SIZE_MAX;
+#endif
+}
+
+
+namespace WinProcGroup {
+
+#if defined(__linux__) && !defined(__ANDROID__)
+
+namespace {
+
+/// NumaNode holds the logical processors of a NUMA node, and how many of them
+/// are the first logical processor of a core.
+
+struct NumaNode {
+  std::vector<int> cpus;
+  int cores = 0;
+};
+
+
+/// read_cpulist() reads a list of processors or nodes in the format used by
+/// sysfs, for instance "0-3,8-11".
+
+std::vector<int> read_cpulist(const string& fname) {
+
+  std::vector<int> list;
+  ifstream file(fname);
+  string range;
+
+  while (getline(file, range, ','))
+  {
+      int first, last;
+      char dash;
+      istringstream ss(range);
+
+      if (!(ss >> first))
+          break;
+
+      if (!(ss >> dash >> last))
+          last = first;
+
+      for (int i = first; i <= last; ++i)
+          list.push_back(i);
+  }
+
+  return list;
+}
+
+
+/// numa_nodes() parses /sys/devices/system/node once and returns the online
+/// NUMA nodes. The result is empty if the information is not available.
+
+const std::vector<NumaNode>& numa_nodes() {
+
+  static const std::vector<NumaNode> nodes = [] {
+
+      std::vector<NumaNode> result;
+      const string root = "/sys/devices/system/";
+
+      for (int n : read_cpulist(root + "node/online"))
+      {
+          NumaNode node;
+          node.cpus = read_cpulist(root + "node/node" + std::to_string(n) + "/cpulist");
+
+          // A processor starts a new core if it is the first of its siblings
+          for (int cpu : node.cpus)
+          {
+              std::vector<int> siblings = read_cpulist(root + "cpu/cpu" + std::to_string(cpu)
+                                                            + "/topology/thread_siblings_list");
+              node.cores += siblings.empty() || siblings[0] == cpu;
+          }
+
+          if (!node.cpus.empty())
+              result.push_back(node);
+      }
+
+      return result;
+  }();
+
+  return nodes;
+}
+
+} // namespace
+
+
+/// best_group() returns the NUMA node for the thread with index idx, following
+/// the same policy as the Windows version below, or -1 if there is a single
+/// node or no information about the nodes.
+
+int best_group(size_t idx) {
+
+  const std::vector<NumaNode>& nodes = numa_nodes();
+
+  if (nodes.size() < 2)
+      return -1;
+
+  std::vector<int> groups;
+
+  // Run as many threads as possible on the same node until core limit is
+  // reached, then move on filling the next node.
+  for (size_t n = 0; n < nodes.size(); ++n)
+      for (int i = 0; i < nodes[n].cores; ++i)
+          groups.push_back(int(n));
+
+  // In case a core has more than one logical processor and we have still
+  // threads to allocate, then spread them evenly across available nodes.
+  size_t threads = 0;
+  for (const NumaNode& node : nodes)
+      threads += node.cpus.size() - node.cores;
+
+  for (size_t t = 0; t < threads; ++t)
+      groups.push_back(int(t % nodes.size()));
+
+  // If we still have more threads than the total number of logical processors
+  // then return -1 and let the OS to decide what to do.
+  return idx < groups.size() ? groups[idx] : -1;
+}
+
+
+/// bindThisThread() sets the affinity of the current thread to the processors
+/// of its NUMA node, so that its memory is then allocated on the same node.
+
+void bindThisThread(size_t idx) {
+
+  int node = best_group(idx);
+
+  if (node == -1)
+      return;
+
+  const std::vector<int>& cpus = numa_nodes()[node].cpus;
+  const int cpuCount = *std::max_element(cpus.begin(), cpus.end()) + 1;
+
+  cpu_set_t* mask = CPU_ALLOC(cpuCount);
+  const size_t size = CPU_ALLOC_SIZE(cpuCount);
+
+  if (!mask)
+      return;
+
+  CPU_ZERO_S(size, mask);
+  for (int cpu : cpus)
+      CPU_SET_S(cpu, size, mask);
+
+  sched_setaffinity(0, size, mask);
+  CPU_FREE(mask);
+}
+
+#elif !defined(_WIN32)
+
+int best_group(size_t) { return -1; }
 
 void bindThisThread(size_t) {}
 
@@ -38,6 +38,9 @@ void* std_aligned_alloc(size_t alignment, size_t size);
 void std_aligned_free(void* ptr);
 void* aligned_large_pages_alloc(size_t size); // memory aligned by page size, min alignment: 4096 bytes
 void aligned_large_pages_free(void* mem); // nop if mem == nullptr
+void* map_file(const std::string& fname, size_t& size, bool write); // nullptr on failure
+void unmap_file(void* mem, size_t size);
+size_t available_memory(); // SIZE_MAX if unknown
 
 void dbg_hit_on(bool b);
 void dbg_hit_on(bool c, bool b);
@@ -182,9 +185,12 @@ inline uint64_t mul_hi64(uint64_t a, uint64_t b) {
 /// logical processor group. This usually means to be limited to use max 64
 /// cores. To overcome this, some special platform specific API should be
 /// called to set group affinity for each thread. Original code from Texel by
-/// Peter Österlund.
+/// Peter Österlund. On Linux, threads are bound the same way to the processors
+/// of a NUMA node, found in /sys/devices/system/node. best_group() returns the
+/// node of a thread, or -1 if the thread is not bound.
 
 namespace WinProcGroup {
+  int best_group(size_t idx);
   void bindThisThread(size_t idx);
 }
 
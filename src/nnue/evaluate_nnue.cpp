@@ -18,15 +18,23 @@
 
 // Code for calculating NNUE evaluation function
 
+#include <algorithm>
+#include <cctype>
+#include <chrono>
+#include <cstring>
 #include <iostream>
 #include <set>
 #include <sstream>
 #include <iomanip>
 #include <fstream>
+#include <type_traits>
+#include <vector>
 
 #include "../evaluate.h"
 #include "../position.h"
+#include "../thread.h"
 #include "../misc.h"
+#include "../movegen.h"
 #include "../uci.h"
 #include "../types.h"
 
@@ -34,15 +42,38 @@
 
 namespace Stockfish::Eval::NNUE {
 
-  // Input feature converter
-  LargePagePtr<FeatureTransformer> featureTransformer;
+  // A loaded network, the main one or the one of the endgames
+  struct Net {
 
-  // Evaluation function
-  AlignedPtr<Network> network[LayerStacks];
+    // Input feature converter
+    const FeatureTransformer* featureTransformer;
 
-  // Evaluation function file name
-  std::string fileName;
-  std::string netDescription;
+    // Evaluation function
+    const Network* network[LayerStacks];
+
+    // Parameters of the network when read from a stream
+    LargePagePtr<FeatureTransformer> featureTransformerStorage;
+    AlignedPtr<Network> networkStorage[LayerStacks];
+
+    // Mapping of the network image file when loaded with load_eval_image()
+    void* image;
+    std::size_t imageSize;
+
+    // Evaluation function file name
+    std::string fileName;
+    std::string netDescription;
+
+    // Number of the load of the network, to invalidate the accumulator caches
+    std::uint32_t netId;
+  };
+
+  Net nets[NetCount];
+
+  // Number of networks loaded so far
+  std::uint32_t netLoads;
+
+  // Positions with at most this number of pieces are evaluated by the endgame network
+  int endgamePieces;
 
   namespace Detail {
 
@@ -63,51 +94,68 @@ namespace Stockfish::Eval::NNUE {
   }
 
   // Read evaluation function parameters
-  template <typename T>
-  bool read_parameters(std::istream& stream, T& reference) {
+  template <typename T, typename... Args>
+  bool read_parameters(std::istream& stream, T& reference, Args... args) {
 
     std::uint32_t header;
     header = read_little_endian<std::uint32_t>(stream);
     if (!stream || header != T::get_hash_value()) return false;
-    return reference.read_parameters(stream);
+    return reference.read_parameters(stream, args...);
   }
 
   // Write evaluation function parameters
-  template <typename T>
-  bool write_parameters(std::ostream& stream, const T& reference) {
+  template <typename T, typename... Args>
+  bool write_parameters(std::ostream& stream, const T& reference, Args... args) {
 
     write_little_endian<std::uint32_t>(stream, T::get_hash_value());
-    return reference.write_parameters(stream);
+    return reference.write_parameters(stream, args...);
   }
 
   }  // namespace Detail
 
+  // Release the mapping of the network image, if any
+  void release_image(Net& net) {
+
+    if (net.image)
+      unmap_file(net.image, net.imageSize);
+
+    net.image = nullptr;
+  }
+
   // Initialize the evaluation function parameters
-  void initialize() {
+  void initialize(Net& net) {
+
+    release_image(net);
+
+    Detail::initialize(net.featureTransformerStorage);
+    net.featureTransformer = net.featureTransformerStorage.get();
 
-    Detail::initialize(featureTransformer);
     for (std::size_t i = 0; i < LayerStacks; ++i)
-      Detail::initialize(network[i]);
+    {
+      Detail::initialize(net.networkStorage[i]);
+      net.network[i] = net.networkStorage[i].get();
+    }
   }
 
   // Read network header
-  bool read_header(std::istream& stream, std::uint32_t* hashValue, std::string* desc)
+  bool read_header(std::istream& stream, std::uint32_t* hashValue, std::string* desc, bool* compressed)
   {
     std::uint32_t version, size;
 
     version     = read_little_endian<std::uint32_t>(stream);
     *hashValue  = read_little_endian<std::uint32_t>(stream);
     size        = read_little_endian<std::uint32_t>(stream);
-    if (!stream || version != Version) return false;
+    if (!stream || (version != Version && version != CompressedVersion)) return false;
+    *compressed = version == CompressedVersion;
     desc->resize(size);
     stream.read(&(*desc)[0], size);
     return !stream.fail();
   }
 
   // Write network header
-  bool write_header(std::ostream& stream, std::uint32_t hashValue, const std::string& desc)
+  bool write_header(std::ostream& stream, std::uint32_t hashValue, const std::string& desc, bool compressed)
   {
-    write_little_endian<std::uint32_t>(stream, Version);
+    write_little_endian<std::uint32_t>(stream, compressed ? CompressedVersion : Version);
     write_little_endian<std::uint32_t>(stream, hashValue);
     write_little_endian<std::uint32_t>(stream, desc.size());
     stream.write(&desc[0], desc.size());
@@ -115,27 +163,90 @@ namespace Stockfish::Eval::NNUE {
   }
 
   // Read network parameters
-  bool read_parameters(std::istream& stream) {
+  bool read_parameters(std::istream& stream, Net& net) {
 
     std::uint32_t hashValue;
-    if (!read_header(stream, &hashValue, &netDescription)) return false;
+    bool compressed;
+    if (!read_header(stream, &hashValue, &net.netDescription, &compressed)) return false;
     if (hashValue != HashValue) return false;
-    if (!Detail::read_parameters(stream, *featureTransformer)) return false;
+    if (!Detail::read_parameters(stream, *net.featureTransformerStorage, compressed)) return false;
     for (std::size_t i = 0; i < LayerStacks; ++i)
-      if (!Detail::read_parameters(stream, *(network[i]))) return false;
+      if (!Detail::read_parameters(stream, *(net.networkStorage[i]))) return false;
     return stream && stream.peek() == std::ios::traits_type::eof();
   }
 
   // Write network parameters
-  bool write_parameters(std::ostream& stream) {
+  bool write_parameters(std::ostream& stream, const Net& net, bool compressed) {
 
-    if (!write_header(stream, HashValue, netDescription)) return false;
-    if (!Detail::write_parameters(stream, *featureTransformer)) return false;
+    if (!write_header(stream, HashValue, net.netDescription, compressed)) return false;
+    if (!Detail::write_parameters(stream, *net.featureTransformer, compressed)) return false;
     for (std::size_t i = 0; i < LayerStacks; ++i)
-      if (!Detail::write_parameters(stream, *(network[i]))) return false;
+      if (!Detail::write_parameters(stream, *(net.network[i]))) return false;
     return (bool)stream;
   }
 
+  // Header of a network image file, as written by save_eval_image(). The image
+  // holds the layers exactly as they are laid out in memory (weights already
+  // permuted for the SIMD code), each one starting on a cache line, so that
+  // they can be used in place once the file is mapped.
+  struct ImageHeader {
+    char          magic[8];
+    std::uint32_t version;
+    std::uint32_t hashValue;
+    std::uint32_t layout;
+    std::uint32_t descSize;
+    std::uint64_t transformerSize;
+    std::uint64_t networkSize;
+    std::uint64_t layerStacks;
+    char          padding[16];
+  };
+
+  static_assert(sizeof(ImageHeader) == CacheLineSize, "Unexpected ImageHeader size");
+  static_assert(alignof(FeatureTransformer) <= CacheLineSize && alignof(Network) <= CacheLineSize);
+  static_assert(std::is_trivially_copyable_v<FeatureTransformer> && std::is_trivially_copyable_v<Network>);
+
+  constexpr char ImageMagic[8] = { 'S', 'F', 'N', 'N', 'I', 'M', 'G', '1' };
+
+  // The in-memory layout of the layers depends on the byte order and on
+  // whether the weights of the affine transforms are permuted for SSSE3.
+  const std::uint32_t ImageLayout =
+      (Is64Bit ? 1 : 0) | (IsLittleEndian ? 2 : 0)
+#if defined(USE_SSSE3)
+    | 4
+#endif
+      ;
+
+  // Offset of the layers in an image, and total size of the image
+  std::size_t image_offset(std::uint32_t descSize) {
+    return sizeof(ImageHeader) + ceil_to_multiple<std::size_t>(descSize, CacheLineSize);
+  }
+
+  std::size_t image_size(std::uint32_t descSize) {
+    return image_offset(descSize)
+         + ceil_to_multiple<std::size_t>(sizeof(FeatureTransformer), CacheLineSize)
+         + ceil_to_multiple<std::size_t>(sizeof(Network), CacheLineSize) * LayerStacks;
+  }
+
+  // Network evaluating the position: the endgame network, if any, when there
+  // are few pieces left, and the main network otherwise. The choice depends on
+  // the number of pieces only, so that along a line of play the network changes
+  // at most once, at the capture where the position enters the endgame.
+  static NetIndex net_index(const Position& pos) {
+
+    return pos.count<ALL_PIECES>() <= endgamePieces ? EndgameNet : MainNet;
+  }
+
+  // Accumulator cache of the thread of the position for the given network,
+  // valid for the network currently loaded. Each network has its own cache, so
+  // that switching between them refreshes from the positions seen before.
+  static AccumulatorCache& accumulator_cache(const Position& pos, NetIndex idx) {
+
+    AccumulatorCache& cache = pos.this_thread()->accumulatorCache[idx];
+    if (cache.netId != nets[idx].netId)
+      cache.clear(nets[idx].netId);
+    return cache;
+  }
+
   // Evaluation function. Perform differential calculation.
   Value evaluate(const Position& pos, bool adjusted) {
 
@@ -160,9 +271,10 @@ namespace Stockfish::Eval::NNUE {
     ASSERT_ALIGNED(transformedFeatures, alignment);
     ASSERT_ALIGNED(buffer, alignment);
 
+    const NetIndex idx = net_index(pos);
     const std::size_t bucket = (pos.count<ALL_PIECES>() - 1) / 4;
-    const auto psqt = featureTransformer->transform(pos, transformedFeatures, bucket);
-    const auto output = network[bucket]->propagate(transformedFeatures, buffer);
+    const auto psqt = nets[idx].featureTransformer->transform(pos, pos.this_thread()->accumulatorStack, accumulator_cache(pos, idx), transformedFeatures, bucket);
+    const auto output = nets[idx].network[bucket]->propagate(transformedFeatures, buffer);
 
     int materialist = psqt;
     int positional  = output[0];
@@ -178,6 +290,508 @@ namespace Stockfish::Eval::NNUE {
     return static_cast<Value>( sum / OutputScale );
   }
 
+  // Check that a FEN can be given to Position::set(), which trusts its input:
+  // eight ranks of eight squares, one king and at most 16 pieces per side, no
+  // pawn on the first and last ranks, a side to move whose opponent is not in
+  // check and, for the KQkq castling rights, a rook to castle with on the back
+  // rank.
+  static bool fen_is_ok(const std::string& fen) {
+
+    std::istringstream ss(fen);
+    std::string placement, side, castling;
+    ss >> placement >> side >> castling;
+
+    char board[8][8] = {}; // [rank from 8 to 1][file]
+    int rank = 0, file = 0, kings[COLOR_NB] = {}, pieces[COLOR_NB] = {};
+
+    for (char c : placement)
+        if (c == '/')
+        {
+            if (file != 8 || ++rank > 7)
+                return false;
+            file = 0;
+        }
+        else if (c >= '1' && c <= '8')
+        {
+            if ((file += c - '0') > 8)
+                return false;
+        }
+        else if (std::string("PNBRQKpnbrqk").find(c) != std::string::npos)
+        {
+            if (file > 7 || (toupper(c) == 'P' && (rank == 0 || rank == 7)))
+                return false;
+            board[rank][file++] = c;
+            kings[WHITE] += c == 'K';
+            kings[BLACK] += c == 'k';
+            ++pieces[islower(c) ? BLACK : WHITE];
+        }
+        else
+            return false;
+
+    if (rank != 7 || file != 8 || kings[WHITE] != 1 || kings[BLACK] != 1)
+        return false;
+
+    if (pieces[WHITE] > 16 || pieces[BLACK] > 16)
+        return false;
+
+    if (side != "w" && side != "b")
+        return false;
+
+    // The king of the side not to move must not be attacked
+    const Color us = side == "w" ? WHITE : BLACK;
+    Bitboard occupied = 0, ours[PIECE_TYPE_NB] = {};
+    Square theirKing = SQ_NONE;
+
+    for (int r = 0; r < 8; ++r)
+        for (int f = 0; f < 8; ++f)
+            if (const char c = board[r][f])
+            {
+                const Square s = make_square(File(f), Rank(7 - r));
+                const PieceType pt = PieceType(std::string(" PNBRQK").find(char(toupper(c))));
+
+                occupied |= s;
+                if ((isupper(c) ? WHITE : BLACK) == us)
+                    ours[pt] |= s;
+                else if (pt == KING)
+                    theirKing = s;
+            }
+
+    if (  (pawn_attacks_bb(~us, theirKing) & ours[PAWN])
+        | (attacks_bb<KNIGHT>(theirKing) & ours[KNIGHT])
+        | (attacks_bb<BISHOP>(theirKing, occupied) & (ours[BISHOP] | ours[QUEEN]))
+        | (attacks_bb<ROOK>(theirKing, occupied) & (ours[ROOK] | ours[QUEEN]))
+        | (attacks_bb<KING>(theirKing) & ours[KING]))
+        return false;
+
+    for (char c : castling)
+    {
+        if (c == '-' || (toupper(c) >= 'A' && toupper(c) <= 'H'))
+            continue;
+
+        if (c != 'K' && c != 'Q' && c != 'k' && c != 'q')
+            return false;
+
+        const bool white = c == 'K' || c == 'Q';
+        const char* backRank = board[white ? 7 : 0];
+        const char king = white ? 'K' : 'k', rook = white ? 'R' : 'r';
+        const int kingFile = int(std::find(backRank, backRank + 8, king) - backRank);
+
+        if (   kingFile == 8
+            || (toupper(c) == 'K' ? std::find(backRank + kingFile, backRank + 8, rook) == backRank + 8
+                                  : std::find(backRank, backRank + kingFile, rook) == backRank + kingFile))
+            return false;
+    }
+
+    return true;
+  }
+
+  // Evaluate the positions given by a stream of FENs, one per line, with all
+  // the threads of the pool, and write their evaluations from the white point
+  // of view in the input order, either as "fen,eval" lines or as 16 bit little
+  // endian integers. The invalid FENs are skipped and reported with their line
+  // number. Returns the number of evaluated positions.
+  std::uint64_t evaluate_batch(std::istream& fens, std::ostream& out, bool binary) {
+
+    constexpr std::size_t BatchSize = 1 << 16;
+
+    std::vector<std::string> batch;
+    std::vector<Value> values;
+    std::uint64_t count = 0, lineNumber = 0;
+    const bool isChess960 = Options["UCI_Chess960"];
+
+    Threads.main()->wait_for_search_finished();
+
+    do {
+        batch.clear();
+
+        std::string fen;
+        while (batch.size() < BatchSize && std::getline(fens, fen))
+        {
+            ++lineNumber;
+
+            if (!fen.empty() && fen.back() == '\r')
+                fen.pop_back();
+
+            if (fen.empty())
+                continue;
+
+            if (fen_is_ok(fen))
+                batch.push_back(fen);
+            else
+                sync_cout << "info string Invalid FEN skipped on line " << lineNumber
+                          << ": " << fen.substr(0, 80) << sync_endl;
+        }
+
+        values.resize(batch.size());
+
+        // Each thread evaluates a contiguous slice of the batch, so that close
+        // positions, as those of a game, make good use of its accumulator cache
+        for (std::size_t i = 0; i < Threads.size(); ++i)
+        {
+            Thread* th = Threads[i];
+            const std::size_t begin = batch.size() *  i      / Threads.size();
+            const std::size_t end   = batch.size() * (i + 1) / Threads.size();
+
+            th->run_custom_job([&, th, begin, end]() {
+                StateInfo st;
+                Position pos;
+
+                for (std::size_t j = begin; j < end; ++j)
+                {
+                    pos.set(batch[j], isChess960, &st, th);
+                    const Value v = evaluate(pos);
+                    values[j] = pos.side_to_move() == WHITE ? v : -v;
+                }
+            });
+        }
+
+        for (Thread* th : Threads)
+            th->wait_for_search_finished();
+
+        for (std::size_t j = 0; j < batch.size(); ++j)
+            if (binary)
+                write_little_endian<std::int16_t>(out, std::int16_t(std::clamp(int(values[j]), INT16_MIN, INT16_MAX)));
+            else
+                out << batch[j] << ',' << values[j] << '\n';
+
+        count += batch.size();
+
+    } while (batch.size() == BatchSize);
+
+    out.flush();
+    return count;
+  }
+
+  // Input layer of the layers timed by benchmark(), which returns the outputs
+  // of the previous layer, computed beforehand.
+  template <typename T, IndexType Dims>
+  struct BenchmarkInput {
+    using OutputType = T;
+    static constexpr IndexType OutputDimensions = Dims;
+    static constexpr std::size_t BufferSize = 0;
+
+    static constexpr std::uint32_t get_hash_value() { return 0; }
+    bool read_parameters(std::istream&) { return true; }
+    bool write_parameters(std::ostream&) const { return true; }
+
+    const OutputType* propagate(const TransformedFeatureType* transformedFeatures, char*) const {
+      return reinterpret_cast<const OutputType*>(transformedFeatures);
+    }
+  };
+
+  // Name of the SIMD instructions used by the NNUE code of this build
+  static std::string simd_target() {
+
+#if defined (USE_AVX512) && defined (USE_VNNI)
+    return "AVX512 VNNI";
+#elif defined (USE_AVX512)
+    return "AVX512";
+#elif defined (USE_AVX2) && defined (USE_VNNI)
+    return "AVX2 VNNI";
+#elif defined (USE_AVX2)
+    return "AVX2";
+#elif defined (USE_SSE41)
+    return "SSE41";
+#elif defined (USE_SSSE3)
+    return "SSSE3";
+#elif defined (USE_SSE2)
+    return "SSE2";
+#elif defined (USE_MMX)
+    return "MMX";
+#elif defined (USE_NEON)
+    return "NEON";
+#else
+    return "none";
+#endif
+  }
+
+  // Time the kernels of the main network over a fixed set of positions, each
+  // operation being repeated the given number of times on each position: the
+  // refresh of the accumulator, its incremental update after the moves changing
+  // 1, 2 and 3 pieces, the transform of the accumulator into the input of the
+  // layers, each layer on its own, the first layer both with the sparse input
+  // used by this build and with a dense one, the hidden layers both as separate
+  // ClippedReLU and AffineTransform layers and as the fused layers used by this
+  // build, checking that they give the same outputs, and the whole evaluation.
+  void benchmark(int iterations) {
+
+    using Layers::AffineTransform;
+    using Layers::ClippedReLU;
+    using FirstLayer = Layers::InputAffineLayer;
+    using DenseFirstLayer = AffineTransform<Layers::InputLayer, FirstLayer::OutputDimensions, false>;
+    using FirstOutputs = BenchmarkInput<std::int32_t, FirstLayer::OutputDimensions>;
+    using LayeredHidden = AffineTransform<ClippedReLU<AffineTransform<ClippedReLU<FirstOutputs>, 32>>, 1>;
+#if defined (USE_SSSE3)
+    using FusedHidden = Layers::ClippedReLUAffine<Layers::ClippedReLUAffine<FirstOutputs, 32>, 1>;
+#else
+    using FusedHidden = LayeredHidden;
+#endif
+    using Clip1 = ClippedReLU<FirstOutputs>;
+    using Affine2 = AffineTransform<BenchmarkInput<std::uint8_t, Clip1::OutputDimensions>, 32>;
+    using Clip2 = ClippedReLU<BenchmarkInput<std::int32_t, Affine2::OutputDimensions>>;
+    using Affine3 = AffineTransform<BenchmarkInput<std::uint8_t, Clip2::OutputDimensions>, 1>;
+
+    static const char* Fens[] = {
+      "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1",
+      "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 10",
+      "4rrk1/pp1n3p/3q2pQ/2p1pb2/2PP4/2P3N1/P2B2PP/4RRK1 b - - 7 19",
+      "r3r1k1/2p2ppp/p1p1bn2/8/1q2P3/2NPQN2/PPP3PP/R4RK1 b - - 2 15",
+      "r1bbk1nr/pp3p1p/2n5/1N4p1/2Np1B2/8/PPP2PPP/2KR1B1R w kq - 0 13",
+      "3r1rk1/p5pp/bpp1pp2/8/q1PP1P2/b3P3/P2NQRPP/1R2B1K1 b - - 6 22",
+      "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 11",
+      "6k1/6p1/6Pp/ppp5/3pn2P/1P3K2/1PP2P2/8 b - - 3 54",
+      "rnbqkb1r/pP3ppp/5n2/2pp4/8/8/P1PP1PPP/RNBQKBNR w KQkq - 0 5"
+    };
+
+    struct Sample {
+      alignas(CacheLineSize) TransformedFeatureType features[FeatureTransformer::BufferSize];
+      alignas(CacheLineSize) std::int32_t firstOutputs[FirstLayer::OutputDimensions];
+      alignas(CacheLineSize) std::uint8_t clipped1[Affine2::PaddedInputDimensions];
+      alignas(CacheLineSize) std::int32_t affine2Outputs[Affine2::OutputDimensions];
+      alignas(CacheLineSize) std::uint8_t clipped2[Affine3::PaddedInputDimensions];
+      std::size_t bucket;
+    };
+
+    if (!Eval::useNNUE || nets[MainNet].fileName.empty())
+    {
+        sync_cout << "info string NNUE benchmark needs a loaded network and Use NNUE enabled" << sync_endl;
+        return;
+    }
+
+    // Copy of the parameters of the loaded network in the timed layers
+    AlignedPtr<FirstLayer> first[LayerStacks];
+    AlignedPtr<DenseFirstLayer> dense[LayerStacks];
+    AlignedPtr<LayeredHidden> layered[LayerStacks];
+    AlignedPtr<FusedHidden> fused[LayerStacks];
+    AlignedPtr<Clip1> clip1[LayerStacks];
+    AlignedPtr<Affine2> affine2[LayerStacks];
+    AlignedPtr<Clip2> clip2[LayerStacks];
+    AlignedPtr<Affine3> affine3[LayerStacks];
+
+    for (std::size_t i = 0; i < LayerStacks; ++i)
+    {
+        std::stringstream ss;
+        nets[MainNet].network[i]->write_parameters(ss);
+
+        Detail::initialize(first[i]);
+        Detail::initialize(dense[i]);
+        Detail::initialize(layered[i]);
+        Detail::initialize(fused[i]);
+        Detail::initialize(clip1[i]);
+        Detail::initialize(affine2[i]);
+        Detail::initialize(clip2[i]);
+        Detail::initialize(affine3[i]);
+        std::stringstream ssDense(ss.str());
+        dense[i]->read_parameters(ssDense);
+        first[i]->read_parameters(ss);
+        const std::string hidden = ss.str().substr(std::size_t(ss.tellg()));
+        std::stringstream ss1(hidden), ss2(hidden), ss3(hidden);
+        layered[i]->read_parameters(ss1);
+        fused[i]->read_parameters(ss2);
+        affine2[i]->read_parameters(ss3);
+        affine3[i]->read_parameters(ss3);
+    }
+
+    Threads.main()->wait_for_search_finished();
+
+    Thread* th = Threads.main();
+    AccumulatorStack& stack = th->accumulatorStack;
+    AccumulatorCache& cache = th->accumulatorCache[MainNet];
+    if (cache.netId != nets[MainNet].netId)
+        cache.clear(nets[MainNet].netId);
+
+    // Each operation is repeated on a position before going to the next one,
+    // as the positions share the accumulators of the thread.
+    auto time_ns = [&](std::size_t count, auto prepare, auto operation) {
+        auto elapsed = std::chrono::steady_clock::duration::zero();
+        for (std::size_t i = 0; i < count; ++i)
+        {
+            prepare(i);
+            auto start = std::chrono::steady_clock::now();
+            for (int n = 0; n < iterations; ++n)
+                operation(i);
+            elapsed += std::chrono::steady_clock::now() - start;
+        }
+        return std::chrono::duration<double, std::nano>(elapsed).count() / (double(iterations) * count);
+    };
+    auto nothing = [](std::size_t) {};
+
+    const std::size_t count = std::size(Fens);
+    std::vector<Sample> samples(count);
+    std::vector<StateInfo> states(count);
+    std::vector<Position> positions(count);
+    std::vector<std::int32_t> scratchOutputs(count), layeredOutputs(count), fusedOutputs(count), singleOutputs(count);
+    std::vector<std::int32_t> sparseOutputs(count), denseOutputs(count);
+    std::vector<Value> values(count);
+
+    for (std::size_t i = 0; i < count; ++i)
+    {
+        Sample& s = samples[i];
+        positions[i].set(Fens[i], false, &states[i], th);
+        s.bucket = (positions[i].count<ALL_PIECES>() - 1) / 4;
+    }
+
+    auto transform = [&](std::size_t i) {
+        nets[MainNet].featureTransformer->transform(positions[i], stack, cache, samples[i].features, samples[i].bucket);
+    };
+
+    // Refresh from the biases, as with an empty accumulator cache
+    double refreshTime = time_ns(count, nothing, [&](std::size_t i) {
+        const Position& pos = positions[i];
+        stack[pos.state()->accumulatorIndex].computed[WHITE] = false;
+        stack[pos.state()->accumulatorIndex].computed[BLACK] = false;
+        cache.entries[pos.square<KING>(WHITE)][WHITE].computed = false;
+        cache.entries[pos.square<KING>(BLACK)][BLACK].computed = false;
+        transform(i);
+    });
+
+    // Transform of an accumulator already computed, as in evaluate()
+    double outputTime = time_ns(count, transform, transform);
+
+    // Incremental updates after the first legal move of each position moving
+    // 1, 2 or 3 pieces, except the king moves which need a refresh
+    double updateTime[4] = {};
+    for (int dirty = 1; dirty <= 3; ++dirty)
+    {
+        std::vector<std::pair<std::size_t, Move>> moves;
+        for (std::size_t i = 0; i < count; ++i)
+            for (const auto& m : MoveList<LEGAL>(positions[i]))
+            {
+                if (type_of(positions[i].moved_piece(m)) == KING)
+                    continue;
+
+                StateInfo st;
+                positions[i].do_move(m, st);
+                const bool found = st.dirtyPiece.dirty_num == dirty;
+                positions[i].undo_move(m);
+                if (found)
+                {
+                    moves.emplace_back(i, m);
+                    break;
+                }
+            }
+
+        StateInfo st;
+        updateTime[dirty] = time_ns(moves.size(),
+            [&](std::size_t j) {
+                const auto [i, m] = moves[j];
+                if (j > 0)
+                    positions[moves[j - 1].first].undo_move(moves[j - 1].second);
+                transform(i);
+                positions[i].do_move(m, st);
+            },
+            [&](std::size_t j) {
+                const Position& pos = positions[moves[j].first];
+                stack[pos.state()->accumulatorIndex].computed[WHITE] = false;
+                stack[pos.state()->accumulatorIndex].computed[BLACK] = false;
+                transform(moves[j].first);
+            });
+
+        if (!moves.empty())
+            positions[moves.back().first].undo_move(moves.back().second);
+    }
+
+    // Inputs of each layer, from the transformed features of the positions
+    for (std::size_t i = 0; i < count; ++i)
+    {
+        Sample& s = samples[i];
+        const std::size_t b = s.bucket;
+        alignas(CacheLineSize) char buffer[std::max({FirstLayer::BufferSize, Clip1::BufferSize, Affine2::BufferSize,
+                                                     Clip2::BufferSize, Affine3::BufferSize})];
+
+        transform(i);
+        std::memcpy(s.firstOutputs, first[b]->propagate(s.features, buffer), sizeof(s.firstOutputs));
+        std::memset(s.clipped1, 0, sizeof(s.clipped1));
+        std::memcpy(s.clipped1, clip1[b]->propagate(reinterpret_cast<const TransformedFeatureType*>(s.firstOutputs), buffer),
+                    Clip1::OutputDimensions);
+        std::memcpy(s.affine2Outputs, affine2[b]->propagate(s.clipped1, buffer), sizeof(s.affine2Outputs));
+        std::memset(s.clipped2, 0, sizeof(s.clipped2));
+        std::memcpy(s.clipped2, clip2[b]->propagate(reinterpret_cast<const TransformedFeatureType*>(s.affine2Outputs), buffer),
+                    Clip2::OutputDimensions);
+        singleOutputs[i] = affine3[b]->propagate(s.clipped2, buffer)[0];
+    }
+
+    // Average time in nanoseconds of a propagation through the given layers
+    // from the given input of the samples, with the first output of each
+    // sample stored in outputs.
+    auto time_propagate = [&](const auto* layers, auto input, std::vector<std::int32_t>& outputs) {
+
+        using Layer = std::remove_cv_t<std::remove_reference_t<decltype(*layers[0])>>;
+        struct alignas(CacheLineSize) Buffer { char data[std::max<std::size_t>(Layer::BufferSize, 1)]; };
+        auto buffer = std::make_unique<Buffer>();
+
+        return time_ns(count, nothing, [&](std::size_t i) {
+            // Read the sample through a volatile pointer, so that the compiler
+            // cannot move the propagation of the same inputs out of the loop.
+            const Sample* volatile sample = &samples[i];
+            const Sample& s = *sample;
+            const auto output = layers[s.bucket]->propagate(
+                reinterpret_cast<const TransformedFeatureType*>(input(s)), buffer->data);
+            outputs[i] = std::int32_t(output[0]);
+        });
+    };
+
+    double firstTime   = time_propagate(first,   [](const Sample& s) { return s.features; },       sparseOutputs);
+    double denseTime   = time_propagate(dense,   [](const Sample& s) { return s.features; },       denseOutputs);
+    double clip1Time   = time_propagate(clip1,   [](const Sample& s) { return s.firstOutputs; },   scratchOutputs);
+    double affine2Time = time_propagate(affine2, [](const Sample& s) { return s.clipped1; },       scratchOutputs);
+    double clip2Time   = time_propagate(clip2,   [](const Sample& s) { return s.affine2Outputs; }, scratchOutputs);
+    double affine3Time = time_propagate(affine3, [](const Sample& s) { return s.clipped2; },       scratchOutputs);
+    double layeredTime = time_propagate(layered, [](const Sample& s) { return s.firstOutputs; },   layeredOutputs);
+    double fusedTime   = time_propagate(fused,   [](const Sample& s) { return s.firstOutputs; },   fusedOutputs);
+
+    // Whole evaluation with the accumulator computed
+    double evaluateTime = time_ns(count, transform, [&](std::size_t i) { values[i] = evaluate(positions[i]); });
+
+    std::stringstream ss;
+    ss << std::fixed << "NNUE benchmark of " << nets[MainNet].fileName
+       << " for SIMD target " << simd_target() << ", " << count << " positions\n\n"
+       << std::left << std::setw(40) << "Operation" << std::right
+       << std::setw(12) << "ns/op" << std::setw(12) << "Mop/s" << '\n';
+
+    auto report = [&](const std::string& name, double ns) {
+        ss << std::left << std::setw(40) << name << std::right << std::setprecision(1)
+           << std::setw(12) << ns << std::setprecision(2) << std::setw(12) << 1000 / ns << '\n';
+    };
+
+    auto dims = [](const auto& layers, const std::string& name) {
+        using Layer = std::remove_reference_t<decltype(*layers[0])>;
+        return name + ' ' + std::to_string(Layer::InputDimensions) + "->" + std::to_string(Layer::OutputDimensions);
+    };
+
+    report("Accumulator refresh *", refreshTime);
+    for (int dirty = 1; dirty <= 3; ++dirty)
+        report("Incremental update, " + std::to_string(dirty) + " dirty piece" + (dirty > 1 ? "s *" : " *"), updateTime[dirty]);
+    report("Accumulator transform", outputTime);
+    report(dims(first, "AffineTransform") + ", sparse", firstTime);
+    report(dims(dense, "AffineTransform") + ", dense", denseTime);
+    report(dims(clip1, "ClippedReLU"), clip1Time);
+    report(dims(affine2, "AffineTransform"), affine2Time);
+    report(dims(clip2, "ClippedReLU"), clip2Time);
+    report(dims(affine3, "AffineTransform"), affine3Time);
+    report("Hidden layers, separate", layeredTime);
+    report("Hidden layers, fused", fusedTime);
+    report("Evaluate", evaluateTime);
+
+    // Share of the chunks of 4 inputs of the first layer which are not zero,
+    // the ones the sparse layer uses.
+    std::size_t nonZeroChunks = 0;
+    for (const Sample& s : samples)
+        for (IndexType j = 0; j < FirstLayer::InputDimensions; j += 4)
+            nonZeroChunks += s.features[j] || s.features[j + 1] || s.features[j + 2] || s.features[j + 3];
+
+    ss << "\n* including the accumulator transform of the position"
+       << "\nSpeedup of the sparse first layer: " << std::setprecision(2) << denseTime / firstTime << "x with "
+       << std::setprecision(1) << 100.0 * nonZeroChunks / (count * FirstLayer::InputDimensions / 4)
+       << "% of non-zero input chunks, "
+       << (sparseOutputs == denseOutputs ? "identical outputs" : "DIFFERENT OUTPUTS")
+       << (std::is_same_v<FusedHidden, LayeredHidden> ? "\nNo fused kernels for this architecture" : "")
+       << "\nSpeedup of the fused layers: " << std::setprecision(2) << layeredTime / fusedTime << "x, "
+       << (fusedOutputs == layeredOutputs && singleOutputs == layeredOutputs ? "identical outputs" : "DIFFERENT OUTPUTS");
+
+    sync_cout << ss.str() << sync_endl;
+  }
+
   struct NnueEvalTrace {
     static_assert(LayerStacks == PSQTBuckets);
 
@@ -209,11 +823,13 @@ namespace Stockfish::Eval::NNUE {
     ASSERT_ALIGNED(transformedFeatures, alignment);
     ASSERT_ALIGNED(buffer, alignment);
 
+    const NetIndex idx = net_index(pos);
+
     NnueEvalTrace t{};
     t.correctBucket = (pos.count<ALL_PIECES>() - 1) / 4;
     for (std::size_t bucket = 0; bucket < LayerStacks; ++bucket) {
-      const auto psqt = featureTransformer->transform(pos, transformedFeatures, bucket);
-      const auto output = network[bucket]->propagate(transformedFeatures, buffer);
+      const auto psqt = nets[idx].featureTransformer->transform(pos, pos.this_thread()->accumulatorStack, accumulator_cache(pos, idx), transformedFeatures, bucket);
+      const auto output = nets[idx].network[bucket]->propagate(transformedFeatures, buffer);
 
       int materialist = psqt;
       int positional  = output[0];
@@ -271,7 +887,8 @@ namespace Stockfish::Eval::NNUE {
 
 
   // trace() returns a string with the value of each piece on a board,
-  // and a table for (PSQT, Layers) values bucket by bucket.
+  // and a table for (PSQT, Layers) values bucket by bucket. It modifies the
+  // accumulators of the thread of the position, which must not be searching.
 
   std::string trace(Position& pos) {
 
@@ -312,19 +929,20 @@ namespace Stockfish::Eval::NNUE {
 
         if (pc != NO_PIECE && type_of(pc) != KING)
         {
-          auto st = pos.state();
+          auto& accumulator = pos.this_thread()->accumulatorStack[pos.state()->accumulatorIndex];
+          ASSERT_ALIGNED(&accumulator, CacheLineSize);
 
           pos.remove_piece(sq);
-          st->accumulator.computed[WHITE] = false;
-          st->accumulator.computed[BLACK] = false;
+          accumulator.computed[WHITE] = false;
+          accumulator.computed[BLACK] = false;
 
           Value eval = evaluate(pos);
           eval = pos.side_to_move() == WHITE ? eval : -eval;
           v = base - eval;
 
           pos.put_piece(pc, sq);
-          st->accumulator.computed[WHITE] = false;
-          st->accumulator.computed[BLACK] = false;
+          accumulator.computed[WHITE] = false;
+          accumulator.computed[BLACK] = false;
         }
 
         writeSquare(f, r, pc, v);
@@ -370,24 +988,78 @@ namespace Stockfish::Eval::NNUE {
 
 
   // Load eval, from a file stream or a memory stream
-  bool load_eval(std::string name, std::istream& stream) {
+  bool load_eval(std::string name, std::istream& stream, NetIndex idx) {
 
-    initialize();
-    fileName = name;
-    return read_parameters(stream);
+    Net& net = nets[idx];
+    initialize(net);
+    net.fileName = name;
+    net.netId = ++netLoads;
+    return read_parameters(stream, net);
+  }
+
+  // Load eval from an image file written by save_eval_image(). The file is
+  // mapped read-only and the layers point straight into it, so that all the
+  // processes using the same image share a single copy of the network.
+  bool load_eval_image(std::string name, const std::string& path, NetIndex idx) {
+
+    std::size_t size = 0;
+    void* mem = map_file(path, size, false);
+    if (!mem)
+      return false;
+
+    const char* base = static_cast<const char*>(mem);
+    const ImageHeader* header = reinterpret_cast<const ImageHeader*>(base);
+
+    if (   size < sizeof(ImageHeader)
+        || std::memcmp(header->magic, ImageMagic, sizeof(ImageMagic))
+        || header->version != Version
+        || header->hashValue != HashValue
+        || header->layout != ImageLayout
+        || header->transformerSize != sizeof(FeatureTransformer)
+        || header->networkSize != sizeof(Network)
+        || header->layerStacks != LayerStacks
+        || size != image_size(header->descSize))
+    {
+      unmap_file(mem, size);
+      return false;
+    }
+
+    Net& net = nets[idx];
+    release_image(net);
+    net.featureTransformerStorage.reset();
+    for (std::size_t i = 0; i < LayerStacks; ++i)
+      net.networkStorage[i].reset();
+
+    net.image = mem;
+    net.imageSize = size;
+
+    std::size_t offset = image_offset(header->descSize);
+    net.featureTransformer = reinterpret_cast<const FeatureTransformer*>(base + offset);
+    offset += ceil_to_multiple<std::size_t>(sizeof(FeatureTransformer), CacheLineSize);
+
+    for (std::size_t i = 0; i < LayerStacks; ++i)
+    {
+      net.network[i] = reinterpret_cast<const Network*>(base + offset);
+      offset += ceil_to_multiple<std::size_t>(sizeof(Network), CacheLineSize);
+    }
+
+    net.netDescription.assign(base + sizeof(ImageHeader), header->descSize);
+    net.fileName = name;
+    net.netId = ++netLoads;
+    return true;
   }
 
   // Save eval, to a file stream or a memory stream
-  bool save_eval(std::ostream& stream) {
+  bool save_eval(std::ostream& stream, bool compressed) {
 
-    if (fileName.empty())
+    if (nets[MainNet].fileName.empty())
       return false;
 
-    return write_parameters(stream);
+    return write_parameters(stream, nets[MainNet], compressed);
   }
 
   /// Save eval, to a file given by its name
-  bool save_eval(const std::optional<std::string>& filename) {
+  bool save_eval(const std::optional<std::string>& filename, bool compressed) {
 
     std::string actualFilename;
     std::string msg;
@@ -396,7 +1068,7 @@ namespace Stockfish::Eval::NNUE {
         actualFilename = filename.value();
     else
     {
-        if (eval_file_loaded != EvalFileDefaultName)
+        if (eval_file_loaded[MainNet] != EvalFileDefaultName)
         {
              msg = "Failed to export a net. A non-embedded net can only be saved if the filename is specified";
 
@@ -407,7 +1079,7 @@ namespace Stockfish::Eval::NNUE {
     }
 
     std::ofstream stream(actualFilename, std::ios_base::binary);
-    bool saved = save_eval(stream);
+    bool saved = save_eval(stream, compressed);
 
     msg = saved ? "Network saved successfully to " + actualFilename
                 : "Failed to export a net";
@@ -416,5 +1088,88 @@ namespace Stockfish::Eval::NNUE {
     return saved;
   }
 
+  // Hash of the parameters of the loaded networks, so that processes can check
+  // that they evaluate alike. It is computed once per set of loaded networks.
+  std::uint64_t net_hash() {
+
+    // Output buffer computing the FNV-1a hash of the bytes written to it
+    struct HashBuffer : std::streambuf {
+      std::uint64_t hash = 0xCBF29CE484222325ULL;
+
+      int_type overflow(int_type c) override {
+        if (c != traits_type::eof())
+            hash = (hash ^ std::uint8_t(c)) * 0x100000001B3ULL;
+        return c;
+      }
+
+      std::streamsize xsputn(const char* s, std::streamsize n) override {
+        for (std::streamsize i = 0; i < n; ++i)
+            hash = (hash ^ std::uint8_t(s[i])) * 0x100000001B3ULL;
+        return n;
+      }
+    };
+
+    static std::uint64_t hash;
+    static std::uint32_t hashedLoads = ~0U;
+
+    if (hashedLoads != netLoads)
+    {
+        HashBuffer buffer;
+        std::ostream stream(&buffer);
+
+        for (const Net& net : nets)
+            if (!net.fileName.empty() && net.featureTransformer)
+                write_parameters(stream, net, false);
+
+        hash = buffer.hash;
+        hashedLoads = netLoads;
+    }
+
+    return hash;
+  }
+
+  /// Save eval as an image file, to be loaded with load_eval_image()
+  bool save_eval_image(const std::string& filename) {
+
+    const Net& net = nets[MainNet];
+
+    if (filename.empty() || net.fileName.empty())
+    {
+        sync_cout << "Failed to export a net image. A loaded net and a filename are required" << sync_endl;
+        return false;
+    }
+
+    ImageHeader header{};
+    std::memcpy(header.magic, ImageMagic, sizeof(ImageMagic));
+    header.version         = Version;
+    header.hashValue       = HashValue;
+    header.layout          = ImageLayout;
+    header.descSize        = std::uint32_t(net.netDescription.size());
+    header.transformerSize = sizeof(FeatureTransformer);
+    header.networkSize     = sizeof(Network);
+    header.layerStacks     = LayerStacks;
+
+    // Write an object followed by zeros up to the next cache line
+    const std::vector<char> zeros(CacheLineSize);
+    std::ofstream stream(filename, std::ios_base::binary);
+
+    auto write_padded = [&](const void* data, std::size_t size) {
+        stream.write(static_cast<const char*>(data), size);
+        stream.write(zeros.data(), ceil_to_multiple<std::size_t>(size, CacheLineSize) - size);
+    };
+
+    write_padded(&header, sizeof(header));
+    write_padded(net.netDescription.data(), net.netDescription.size());
+    write_padded(net.featureTransformer, sizeof(FeatureTransformer));
+    for (std::size_t i = 0; i < LayerStacks; ++i)
+        write_padded(net.network[i], sizeof(Network));
+
+    bool saved = bool(stream.flush());
+
+    sync_cout << (saved ? "Network image saved successfully to " + filename
+                        : "Failed to export a net image") << sync_endl;
+    return saved;
+  }
+
 
 } // namespace Stockfish::Eval::NNUE
@@ -70,6 +70,35 @@ namespace Stockfish::Eval::NNUE::Features {
     }
   }
 
+  // append_changed_indices() : get a list of indices for the features which
+  // differ from the given pieces, as when refreshing from a cached accumulator
+
+  void HalfKAv2::append_changed_indices(
+    const Position& pos,
+    Color perspective,
+    const Bitboard* byColorBB,
+    const Bitboard* byTypeBB,
+    ValueListInserter<IndexType> removed,
+    ValueListInserter<IndexType> added
+  ) {
+    Square ksq = orient(perspective, pos.square<KING>(perspective));
+    for (Color c : { WHITE, BLACK })
+      for (PieceType pt = PAWN; pt <= KING; ++pt)
+      {
+        const Piece pc = make_piece(c, pt);
+        const Bitboard oldBB = byColorBB[c] & byTypeBB[pt];
+        const Bitboard newBB = pos.pieces(c, pt);
+
+        Bitboard bb = oldBB & ~newBB;
+        while (bb)
+          removed.push_back(make_index(perspective, pop_lsb(bb), pc, ksq));
+
+        bb = newBB & ~oldBB;
+        while (bb)
+          added.push_back(make_index(perspective, pop_lsb(bb), pc, ksq));
+      }
+  }
+
   int HalfKAv2::update_cost(StateInfo* st) {
     return st->dirtyPiece.dirty_num;
   }
@@ -23,11 +23,135 @@
 
 #include <iostream>
 #include "../nnue_common.h"
+#include "../../bitboard.h"
 
 namespace Stockfish::Eval::NNUE::Layers {
 
-  // Affine transformation layer
-  template <typename PreviousLayer, IndexType OutDims>
+  // Indices of the set bits of every byte, to find the non-zero inputs
+  struct NnzLookup {
+    constexpr NnzLookup() : indices() {
+      for (unsigned i = 0; i < 256; ++i)
+        for (unsigned j = 0, k = 0; j < 8; ++j)
+          if (i & (1 << j))
+            indices[i][k++] = std::uint16_t(j);
+    }
+
+    alignas(16) std::uint16_t indices[256][8];
+  };
+
+  inline constexpr NnzLookup NnzIndices;
+
+  // Helpers to accumulate the dot products of groups of 4 unsigned 8 bit inputs
+  // and signed 8 bit weights into 32 bit lanes, and to sum the lanes of a vector
+#if defined (USE_AVX512)
+
+  inline int m512_hadd(__m512i sum, int bias) {
+    return _mm512_reduce_add_epi32(sum) + bias;
+  }
+
+  inline void m512_add_dpbusd_epi32(__m512i& acc, __m512i a, __m512i b) {
+#if defined (USE_VNNI)
+    acc = _mm512_dpbusd_epi32(acc, a, b);
+#else
+    __m512i product0 = _mm512_maddubs_epi16(a, b);
+    product0 = _mm512_madd_epi16(product0, _mm512_set1_epi16(1));
+    acc = _mm512_add_epi32(acc, product0);
+#endif
+  }
+
+  inline void m512_add_dpbusd_epi32x4(__m512i& acc, __m512i a0, __m512i b0, __m512i a1, __m512i b1,
+                                      __m512i a2, __m512i b2, __m512i a3, __m512i b3) {
+#if defined (USE_VNNI)
+    acc = _mm512_dpbusd_epi32(acc, a0, b0);
+    acc = _mm512_dpbusd_epi32(acc, a1, b1);
+    acc = _mm512_dpbusd_epi32(acc, a2, b2);
+    acc = _mm512_dpbusd_epi32(acc, a3, b3);
+#else
+    __m512i product0 = _mm512_maddubs_epi16(a0, b0);
+    __m512i product1 = _mm512_maddubs_epi16(a1, b1);
+    __m512i product2 = _mm512_maddubs_epi16(a2, b2);
+    __m512i product3 = _mm512_maddubs_epi16(a3, b3);
+    product0 = _mm512_adds_epi16(product0, product1);
+    product0 = _mm512_madd_epi16(product0, _mm512_set1_epi16(1));
+    product2 = _mm512_adds_epi16(product2, product3);
+    product2 = _mm512_madd_epi16(product2, _mm512_set1_epi16(1));
+    acc = _mm512_add_epi32(acc, _mm512_add_epi32(product0, product2));
+#endif
+  }
+
+#endif
+#if defined (USE_AVX2)
+
+  inline int m256_hadd(__m256i sum, int bias) {
+    __m128i sum128 = _mm_add_epi32(_mm256_castsi256_si128(sum), _mm256_extracti128_si256(sum, 1));
+    sum128 = _mm_add_epi32(sum128, _mm_shuffle_epi32(sum128, _MM_PERM_BADC));
+    sum128 = _mm_add_epi32(sum128, _mm_shuffle_epi32(sum128, _MM_PERM_CDAB));
+    return _mm_cvtsi128_si32(sum128) + bias;
+  }
+
+  inline void m256_add_dpbusd_epi32(__m256i& acc, __m256i a, __m256i b) {
+#if defined (USE_VNNI)
+    acc = _mm256_dpbusd_epi32(acc, a, b);
+#else
+    __m256i product0 = _mm256_maddubs_epi16(a, b);
+    product0 = _mm256_madd_epi16(product0, _mm256_set1_epi16(1));
+    acc = _mm256_add_epi32(acc, product0);
+#endif
+  }
+
+  inline void m256_add_dpbusd_epi32x4(__m256i& acc, __m256i a0, __m256i b0, __m256i a1, __m256i b1,
+                                      __m256i a2, __m256i b2, __m256i a3, __m256i b3) {
+#if defined (USE_VNNI)
+    acc = _mm256_dpbusd_epi32(acc, a0, b0);
+    acc = _mm256_dpbusd_epi32(acc, a1, b1);
+    acc = _mm256_dpbusd_epi32(acc, a2, b2);
+    acc = _mm256_dpbusd_epi32(acc, a3, b3);
+#else
+    __m256i product0 = _mm256_maddubs_epi16(a0, b0);
+    __m256i product1 = _mm256_maddubs_epi16(a1, b1);
+    __m256i product2 = _mm256_maddubs_epi16(a2, b2);
+    __m256i product3 = _mm256_maddubs_epi16(a3, b3);
+    product0 = _mm256_adds_epi16(product0, product1);
+    product0 = _mm256_madd_epi16(product0, _mm256_set1_epi16(1));
+    product2 = _mm256_adds_epi16(product2, product3);
+    product2 = _mm256_madd_epi16(product2, _mm256_set1_epi16(1));
+    acc = _mm256_add_epi32(acc, _mm256_add_epi32(product0, product2));
+#endif
+  }
+
+#endif
+#if defined (USE_SSSE3)
+
+  inline int m128_hadd(__m128i sum, int bias) {
+    sum = _mm_add_epi32(sum, _mm_shuffle_epi32(sum, 0x4E)); //_MM_PERM_BADC
+    sum = _mm_add_epi32(sum, _mm_shuffle_epi32(sum, 0xB1)); //_MM_PERM_CDAB
+    return _mm_cvtsi128_si32(sum) + bias;
+  }
+
+  inline void m128_add_dpbusd_epi32(__m128i& acc, __m128i a, __m128i b) {
+    __m128i product0 = _mm_maddubs_epi16(a, b);
+    product0 = _mm_madd_epi16(product0, _mm_set1_epi16(1));
+    acc = _mm_add_epi32(acc, product0);
+  }
+
+  inline void m128_add_dpbusd_epi32x4(__m128i& acc, __m128i a0, __m128i b0, __m128i a1, __m128i b1,
+                                      __m128i a2, __m128i b2, __m128i a3, __m128i b3) {
+    __m128i product0 = _mm_maddubs_epi16(a0, b0);
+    __m128i product1 = _mm_maddubs_epi16(a1, b1);
+    __m128i product2 = _mm_maddubs_epi16(a2, b2);
+    __m128i product3 = _mm_maddubs_epi16(a3, b3);
+    product0 = _mm_adds_epi16(product0, product1);
+    product0 = _mm_madd_epi16(product0, _mm_set1_epi16(1));
+    product2 = _mm_adds_epi16(product2, product3);
+    product2 = _mm_madd_epi16(product2, _mm_set1_epi16(1));
+    acc = _mm_add_epi32(acc, _mm_add_epi32(product0, product2));
+  }
+
+#endif
+
+  // Affine transformation layer. With SparseInput, most of the inputs are
+  // expected to be zero and only the weights of the non-zero ones are used.
+  template <typename PreviousLayer, IndexType OutDims, bool SparseInput = false>
   class AffineTransform {
    public:
     // Input/output type
@@ -64,21 +188,25 @@ namespace Stockfish::Eval::NNUE::Layers {
       return hashValue;
     }
 
+    // Index in memory of the i-th weight of the file. With SSSE3 the weights
+    // of each chunk of 4 inputs are stored together for all the outputs.
+    static constexpr IndexType get_weight_index(IndexType i) {
+#if !defined (USE_SSSE3)
+      return i;
+#else
+      return (i / 4) % (PaddedInputDimensions / 4) * OutputDimensions * 4 +
+             i / PaddedInputDimensions * 4 +
+             i % 4;
+#endif
+    }
+
     // Read network parameters
     bool read_parameters(std::istream& stream) {
       if (!previousLayer.read_parameters(stream)) return false;
       for (std::size_t i = 0; i < OutputDimensions; ++i)
         biases[i] = read_little_endian<BiasType>(stream);
-      for (std::size_t i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
-#if !defined (USE_SSSE3)
-        weights[i] = read_little_endian<WeightType>(stream);
-#else
-        weights[
-          (i / 4) % (PaddedInputDimensions / 4) * OutputDimensions * 4 +
-          i / PaddedInputDimensions * 4 +
-          i % 4
-        ] = read_little_endian<WeightType>(stream);
-#endif
+      for (IndexType i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
+        weights[get_weight_index(i)] = read_little_endian<WeightType>(stream);
 
       return !stream.fail();
     }
@@ -88,23 +216,8 @@ namespace Stockfish::Eval::NNUE::Layers {
       if (!previousLayer.write_parameters(stream)) return false;
       for (std::size_t i = 0; i < OutputDimensions; ++i)
           write_little_endian<BiasType>(stream, biases[i]);
-#if !defined (USE_SSSE3)
-      for (std::size_t i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
-          write_little_endian<WeightType>(stream, weights[i]);
-#else
-      std::unique_ptr<WeightType[]> unscrambledWeights = std::make_unique<WeightType[]>(OutputDimensions * PaddedInputDimensions);
-      for (std::size_t i = 0; i < OutputDimensions * PaddedInputDimensions; ++i) {
-          unscrambledWeights[i] =
-              weights[
-                (i / 4) % (PaddedInputDimensions / 4) * OutputDimensions * 4 +
-                i / PaddedInputDimensions * 4 +
-                i % 4
-              ];
-      }
-
-      for (std::size_t i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
-          write_little_endian<WeightType>(stream, unscrambledWeights[i]);
-#endif
+      for (IndexType i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
+          write_little_endian<WeightType>(stream, weights[get_weight_index(i)]);
 
       return !stream.fail();
     }
@@ -115,118 +228,6 @@ namespace Stockfish::Eval::NNUE::Layers {
       const auto input = previousLayer.propagate(
           transformedFeatures, buffer + SelfBufferSize);
 
-#if defined (USE_AVX512)
-
-      [[maybe_unused]] const __m512i Ones512 = _mm512_set1_epi16(1);
-
-      [[maybe_unused]] auto m512_hadd = [](__m512i sum, int bias) -> int {
-        return _mm512_reduce_add_epi32(sum) + bias;
-      };
-
-      [[maybe_unused]] auto m512_add_dpbusd_epi32 = [=](__m512i& acc, __m512i a, __m512i b) {
-#if defined (USE_VNNI)
-        acc = _mm512_dpbusd_epi32(acc, a, b);
-#else
-        __m512i product0 = _mm512_maddubs_epi16(a, b);
-        product0 = _mm512_madd_epi16(product0, Ones512);
-        acc = _mm512_add_epi32(acc, product0);
-#endif
-      };
-
-      [[maybe_unused]] auto m512_add_dpbusd_epi32x4 = [=](__m512i& acc, __m512i a0, __m512i b0, __m512i a1, __m512i b1,
-                                                                        __m512i a2, __m512i b2, __m512i a3, __m512i b3) {
-#if defined (USE_VNNI)
-        acc = _mm512_dpbusd_epi32(acc, a0, b0);
-        acc = _mm512_dpbusd_epi32(acc, a1, b1);
-        acc = _mm512_dpbusd_epi32(acc, a2, b2);
-        acc = _mm512_dpbusd_epi32(acc, a3, b3);
-#else
-        __m512i product0 = _mm512_maddubs_epi16(a0, b0);
-        __m512i product1 = _mm512_maddubs_epi16(a1, b1);
-        __m512i product2 = _mm512_maddubs_epi16(a2, b2);
-        __m512i product3 = _mm512_maddubs_epi16(a3, b3);
-        product0 = _mm512_adds_epi16(product0, product1);
-        product0 = _mm512_madd_epi16(product0, Ones512);
-        product2 = _mm512_adds_epi16(product2, product3);
-        product2 = _mm512_madd_epi16(product2, Ones512);
-        acc = _mm512_add_epi32(acc, _mm512_add_epi32(product0, product2));
-#endif
-      };
-
-#endif
-#if defined (USE_AVX2)
-
-      [[maybe_unused]] const __m256i Ones256 = _mm256_set1_epi16(1);
-
-      [[maybe_unused]] auto m256_hadd = [](__m256i sum, int bias) -> int {
-        __m128i sum128 = _mm_add_epi32(_mm256_castsi256_si128(sum), _mm256_extracti128_si256(sum, 1));
-        sum128 = _mm_add_epi32(sum128, _mm_shuffle_epi32(sum128, _MM_PERM_BADC));
-        sum128 = _mm_add_epi32(sum128, _mm_shuffle_epi32(sum128, _MM_PERM_CDAB));
-        return _mm_cvtsi128_si32(sum128) + bias;
-      };
-
-      [[maybe_unused]] auto m256_add_dpbusd_epi32 = [=](__m256i& acc, __m256i a, __m256i b) {
-#if defined (USE_VNNI)
-        acc = _mm256_dpbusd_epi32(acc, a, b);
-#else
-        __m256i product0 = _mm256_maddubs_epi16(a, b);
-        product0 = _mm256_madd_epi16(product0, Ones256);
-        acc = _mm256_add_epi32(acc, product0);
-#endif
-      };
-
-      [[maybe_unused]] auto m256_add_dpbusd_epi32x4 = [=](__m256i& acc, __m256i a0, __m256i b0, __m256i a1, __m256i b1,
-                                                                        __m256i a2, __m256i b2, __m256i a3, __m256i b3) {
-#if defined (USE_VNNI)
-        acc = _mm256_dpbusd_epi32(acc, a0, b0);
-        acc = _mm256_dpbusd_epi32(acc, a1, b1);
-        acc = _mm256_dpbusd_epi32(acc, a2, b2);
-        acc = _mm256_dpbusd_epi32(acc, a3, b3);
-#else
-        __m256i product0 = _mm256_maddubs_epi16(a0, b0);
-        __m256i product1 = _mm256_maddubs_epi16(a1, b1);
-        __m256i product2 = _mm256_maddubs_epi16(a2, b2);
-        __m256i product3 = _mm256_maddubs_epi16(a3, b3);
-        product0 = _mm256_adds_epi16(product0, product1);
-        product0 = _mm256_madd_epi16(product0, Ones256);
-        product2 = _mm256_adds_epi16(product2, product3);
-        product2 = _mm256_madd_epi16(product2, Ones256);
-        acc = _mm256_add_epi32(acc, _mm256_add_epi32(product0, product2));
-#endif
-      };
-
-#endif
-#if defined (USE_SSSE3)
-
-      [[maybe_unused]] const __m128i Ones128 = _mm_set1_epi16(1);
-
-      [[maybe_unused]] auto m128_hadd = [](__m128i sum, int bias) -> int {
-        sum = _mm_add_epi32(sum, _mm_shuffle_epi32(sum, 0x4E)); //_MM_PERM_BADC
-        sum = _mm_add_epi32(sum, _mm_shuffle_epi32(sum, 0xB1)); //_MM_PERM_CDAB
-        return _mm_cvtsi128_si32(sum) + bias;
-      };
-
-      [[maybe_unused]] auto m128_add_dpbusd_epi32 = [=](__m128i& acc, __m128i a, __m128i b) {
-        __m128i product0 = _mm_maddubs_epi16(a, b);
-        product0 = _mm_madd_epi16(product0, Ones128);
-        acc = _mm_add_epi32(acc, product0);
-      };
-
-      [[maybe_unused]] auto m128_add_dpbusd_epi32x4 = [=](__m128i& acc, __m128i a0, __m128i b0, __m128i a1, __m128i b1,
-                                                                        __m128i a2, __m128i b2, __m128i a3, __m128i b3) {
-        __m128i product0 = _mm_maddubs_epi16(a0, b0);
-        __m128i product1 = _mm_maddubs_epi16(a1, b1);
-        __m128i product2 = _mm_maddubs_epi16(a2, b2);
-        __m128i product3 = _mm_maddubs_epi16(a3, b3);
-        product0 = _mm_adds_epi16(product0, product1);
-        product0 = _mm_madd_epi16(product0, Ones128);
-        product2 = _mm_adds_epi16(product2, product3);
-        product2 = _mm_madd_epi16(product2, Ones128);
-        acc = _mm_add_epi32(acc, _mm_add_epi32(product0, product2));
-      };
-
-#endif
-
 #if defined (USE_AVX512)
       using vec_t = __m512i;
       #define vec_setzero _mm512_setzero_si512
@@ -269,18 +270,79 @@ namespace Stockfish::Eval::NNUE::Layers {
           vec_t* outptr = reinterpret_cast<vec_t*>(output);
           std::memcpy(output, biases, OutputDimensions * sizeof(OutputType));
 
-          for (int i = 0; i < (int)NumChunks - 3; i += 4)
+          // With SparseInput, find the chunks of 4 inputs which are not all zero.
+          // The inputs are clipped to [0, 127], so a chunk read as an int32 is
+          // positive if and only if it has a non-zero input. We look at 8 chunks
+          // at a time and write the indices of the non-zero ones with a lookup table.
+          alignas(16) std::uint16_t nnz[NumChunks];
+          IndexType count = NumChunks;
+
+          if constexpr (SparseInput)
+          {
+              static_assert(NumChunks % 8 == 0);
+
+              count = 0;
+              for (IndexType i = 0; i < NumChunks; i += 8)
+              {
+#if defined (USE_AVX2)
+                  const __m256i in = _mm256_load_si256(reinterpret_cast<const __m256i*>(&input32[i]));
+                  const unsigned mask = _mm256_movemask_ps(_mm256_castsi256_ps(
+                                        _mm256_cmpgt_epi32(in, _mm256_setzero_si256())));
+#else
+                  const __m128i in0 = _mm_load_si128(reinterpret_cast<const __m128i*>(&input32[i + 0]));
+                  const __m128i in1 = _mm_load_si128(reinterpret_cast<const __m128i*>(&input32[i + 4]));
+                  const unsigned mask =  _mm_movemask_ps(_mm_castsi128_ps(_mm_cmpgt_epi32(in0, _mm_setzero_si128())))
+                                      | (_mm_movemask_ps(_mm_castsi128_ps(_mm_cmpgt_epi32(in1, _mm_setzero_si128()))) << 4);
+#endif
+                  const __m128i indices = _mm_add_epi16(_mm_set1_epi16(std::int16_t(i)),
+                                          _mm_load_si128(reinterpret_cast<const __m128i*>(NnzIndices.indices[mask])));
+                  _mm_storeu_si128(reinterpret_cast<__m128i*>(&nnz[count]), indices);
+                  count += popcount(mask);
+              }
+          }
+
+          // Then accumulate only the weight columns of these chunks, unless they
+          // are so many that going through all the columns is faster.
+          if (count * 4 <= NumChunks * 3)
+          {
+              IndexType k = 0;
+              for ( ; k + 3 < count; k += 4)
+              {
+                  const vec_t in0 = vec_set_32(input32[nnz[k + 0]]);
+                  const vec_t in1 = vec_set_32(input32[nnz[k + 1]]);
+                  const vec_t in2 = vec_set_32(input32[nnz[k + 2]]);
+                  const vec_t in3 = vec_set_32(input32[nnz[k + 3]]);
+                  const auto col0 = reinterpret_cast<const vec_t*>(&weights[nnz[k + 0] * OutputDimensions * 4]);
+                  const auto col1 = reinterpret_cast<const vec_t*>(&weights[nnz[k + 1] * OutputDimensions * 4]);
+                  const auto col2 = reinterpret_cast<const vec_t*>(&weights[nnz[k + 2] * OutputDimensions * 4]);
+                  const auto col3 = reinterpret_cast<const vec_t*>(&weights[nnz[k + 3] * OutputDimensions * 4]);
+                  for (int j = 0; j * OutputSimdWidth < OutputDimensions; ++j)
+                      vec_add_dpbusd_32x4(outptr[j], in0, col0[j], in1, col1[j], in2, col2[j], in3, col3[j]);
+              }
+
+              for ( ; k < count; ++k)
+              {
+                  const vec_t in = vec_set_32(input32[nnz[k]]);
+                  const auto col = reinterpret_cast<const vec_t*>(&weights[nnz[k] * OutputDimensions * 4]);
+                  for (int j = 0; j * OutputSimdWidth < OutputDimensions; ++j)
+                      vec_add_dpbusd_32(outptr[j], in, col[j]);
+              }
+          }
+          else
           {
-              const vec_t in0 = vec_set_32(input32[i + 0]);
-              const vec_t in1 = vec_set_32(input32[i + 1]);
-              const vec_t in2 = vec_set_32(input32[i + 2]);
-              const vec_t in3 = vec_set_32(input32[i + 3]);
-              const auto col0 = reinterpret_cast<const vec_t*>(&weights[(i + 0) * OutputDimensions * 4]);
-              const auto col1 = reinterpret_cast<const vec_t*>(&weights[(i + 1) * OutputDimensions * 4]);
-              const auto col2 = reinterpret_cast<const vec_t*>(&weights[(i + 2) * OutputDimensions * 4]);
-              const auto col3 = reinterpret_cast<const vec_t*>(&weights[(i + 3) * OutputDimensions * 4]);
-              for (int j = 0; j * OutputSimdWidth < OutputDimensions; ++j)
-                  vec_add_dpbusd_32x4(outptr[j], in0, col0[j], in1, col1[j], in2, col2[j], in3, col3[j]);
+              for (int i = 0; i < (int)NumChunks - 3; i += 4)
+              {
+                  const vec_t in0 = vec_set_32(input32[i + 0]);
+                  const vec_t in1 = vec_set_32(input32[i + 1]);
+                  const vec_t in2 = vec_set_32(input32[i + 2]);
+                  const vec_t in3 = vec_set_32(input32[i + 3]);
+                  const auto col0 = reinterpret_cast<const vec_t*>(&weights[(i + 0) * OutputDimensions * 4]);
+                  const auto col1 = reinterpret_cast<const vec_t*>(&weights[(i + 1) * OutputDimensions * 4]);
+                  const auto col2 = reinterpret_cast<const vec_t*>(&weights[(i + 2) * OutputDimensions * 4]);
+                  const auto col3 = reinterpret_cast<const vec_t*>(&weights[(i + 3) * OutputDimensions * 4]);
+                  for (int j = 0; j * OutputSimdWidth < OutputDimensions; ++j)
+                      vec_add_dpbusd_32x4(outptr[j], in0, col0[j], in1, col1[j], in2, col2[j], in3, col3[j]);
+              }
           }
       }
       else if constexpr (OutputDimensions == 1)
@@ -0,0 +1,208 @@
+/*
+  Stockfish, a UCI chess playing engine derived from Glaurung 2.1
+  Copyright (C) 2004-2021 The Stockfish developers (see AUTHORS file)
+
+  Stockfish is free software: you can redistribute it and/or modify
+  it under the terms of the GNU General Public License as published by
+  the Free Software Foundation, either version 3 of the License, or
+  (at your option) any later version.
+
+  Stockfish is distributed in the hope that it will be useful,
+  but WITHOUT ANY WARRANTY; without even the implied warranty of
+  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+  GNU General Public License for more details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+// Definition of layer ClippedReLUAffine of NNUE evaluation function
+
+#ifndef NNUE_LAYERS_CLIPPED_RELU_AFFINE_H_INCLUDED
+#define NNUE_LAYERS_CLIPPED_RELU_AFFINE_H_INCLUDED
+
+#include <iostream>
+#include "../nnue_common.h"
+#include "affine_transform.h"
+#include "clipped_relu.h"
+
+namespace Stockfish::Eval::NNUE::Layers {
+
+#if defined (USE_SSSE3)
+
+  // ClippedReLU followed by AffineTransform, in a single kernel. The clipped
+  // inputs are computed in registers, 16 at a time, and fed directly to the
+  // dot products instead of going through the buffer. The parameters, their
+  // layout and the hash value are those of the two layers, so both versions
+  // of a network read the same files.
+  template <typename PreviousLayer, IndexType OutDims>
+  class ClippedReLUAffine {
+    using Layered = AffineTransform<ClippedReLU<PreviousLayer>, OutDims>;
+
+   public:
+    // Input/output type
+    using InputType = typename PreviousLayer::OutputType;
+    using OutputType = std::int32_t;
+    static_assert(std::is_same<InputType, std::int32_t>::value, "");
+
+    // Number of input/output dimensions
+    static constexpr IndexType InputDimensions =
+        PreviousLayer::OutputDimensions;
+    static constexpr IndexType OutputDimensions = OutDims;
+    static constexpr IndexType PaddedInputDimensions =
+        Layered::PaddedInputDimensions;
+    static constexpr IndexType OutputSimdWidth = Layered::OutputSimdWidth;
+
+    static_assert(InputDimensions % 16 == 0);
+    static_assert(OutputDimensions % OutputSimdWidth == 0 || OutputDimensions == 1);
+
+    // Size of forward propagation buffer used in this layer
+    static constexpr std::size_t SelfBufferSize =
+        ceil_to_multiple(OutputDimensions * sizeof(OutputType), CacheLineSize);
+
+    // Size of the forward propagation buffer used from the input layer to this layer
+    static constexpr std::size_t BufferSize =
+        PreviousLayer::BufferSize + SelfBufferSize;
+
+    // Hash value embedded in the evaluation file
+    static constexpr std::uint32_t get_hash_value() {
+      return Layered::get_hash_value();
+    }
+
+    // Read network parameters
+    bool read_parameters(std::istream& stream) {
+      if (!previousLayer.read_parameters(stream)) return false;
+      for (std::size_t i = 0; i < OutputDimensions; ++i)
+        biases[i] = read_little_endian<BiasType>(stream);
+      for (IndexType i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
+        weights[Layered::get_weight_index(i)] = read_little_endian<WeightType>(stream);
+
+      return !stream.fail();
+    }
+
+    // Write network parameters
+    bool write_parameters(std::ostream& stream) const {
+      if (!previousLayer.write_parameters(stream)) return false;
+      for (std::size_t i = 0; i < OutputDimensions; ++i)
+          write_little_endian<BiasType>(stream, biases[i]);
+      for (IndexType i = 0; i < OutputDimensions * PaddedInputDimensions; ++i)
+          write_little_endian<WeightType>(stream, weights[Layered::get_weight_index(i)]);
+
+      return !stream.fail();
+    }
+
+    // Forward propagation
+    const OutputType* propagate(
+        const TransformedFeatureType* transformedFeatures, char* buffer) const {
+      const auto input = previousLayer.propagate(
+          transformedFeatures, buffer + SelfBufferSize);
+      const auto output = reinterpret_cast<OutputType*>(buffer);
+
+      // Clipped ReLU of the 16 inputs starting at the given one, as bytes
+      auto clip16 = [in = reinterpret_cast<const __m128i*>(input)](IndexType start) {
+        const __m128i* p = &in[start / 4];
+        const __m128i words0 = _mm_packs_epi32(_mm_srai_epi32(p[0], WeightScaleBits),
+                                               _mm_srai_epi32(p[1], WeightScaleBits));
+        const __m128i words1 = _mm_packs_epi32(_mm_srai_epi32(p[2], WeightScaleBits),
+                                               _mm_srai_epi32(p[3], WeightScaleBits));
+        return _mm_min_epu8(_mm_packus_epi16(words0, words1), _mm_set1_epi8(127));
+      };
+
+      if constexpr (OutputDimensions % OutputSimdWidth == 0)
+      {
+#if defined (USE_AVX512)
+          using vec_t = __m512i;
+          #define vec_broadcast_128 _mm512_broadcast_i32x4
+          #define vec_shuffle_32(a, imm) _mm512_shuffle_epi32(a, _MM_PERM_ENUM(imm))
+          auto& vec_add_dpbusd_32x4 = m512_add_dpbusd_epi32x4;
+#elif defined (USE_AVX2)
+          using vec_t = __m256i;
+          #define vec_broadcast_128 _mm256_broadcastsi128_si256
+          #define vec_shuffle_32 _mm256_shuffle_epi32
+          auto& vec_add_dpbusd_32x4 = m256_add_dpbusd_epi32x4;
+#else
+          using vec_t = __m128i;
+          #define vec_broadcast_128
+          #define vec_shuffle_32 _mm_shuffle_epi32
+          auto& vec_add_dpbusd_32x4 = m128_add_dpbusd_epi32x4;
+#endif
+          constexpr IndexType NumRegs = OutputDimensions / OutputSimdWidth;
+
+          vec_t acc[NumRegs];
+          for (IndexType k = 0; k < NumRegs; ++k)
+              acc[k] = reinterpret_cast<const vec_t*>(biases)[k];
+
+          // Each group of 16 clipped inputs makes 4 chunks of 4 inputs, which
+          // are broadcast and multiplied by their columns of weights.
+          for (IndexType i = 0; i < InputDimensions; i += 16)
+          {
+              const vec_t clipped = vec_broadcast_128(clip16(i));
+              const vec_t in0 = vec_shuffle_32(clipped, 0x00);
+              const vec_t in1 = vec_shuffle_32(clipped, 0x55);
+              const vec_t in2 = vec_shuffle_32(clipped, 0xAA);
+              const vec_t in3 = vec_shuffle_32(clipped, 0xFF);
+              const auto col0 = reinterpret_cast<const vec_t*>(&weights[(i / 4 + 0) * OutputDimensions * 4]);
+              const auto col1 = reinterpret_cast<const vec_t*>(&weights[(i / 4 + 1) * OutputDimensions * 4]);
+              const auto col2 = reinterpret_cast<const vec_t*>(&weights[(i / 4 + 2) * OutputDimensions * 4]);
+              const auto col3 = reinterpret_cast<const vec_t*>(&weights[(i / 4 + 3) * OutputDimensions * 4]);
+              for (IndexType k = 0; k < NumRegs; ++k)
+                  vec_add_dpbusd_32x4(acc[k], in0, col0[k], in1, col1[k], in2, col2[k], in3, col3[k]);
+          }
+
+          for (IndexType k = 0; k < NumRegs; ++k)
+              reinterpret_cast<vec_t*>(output)[k] = acc[k];
+
+#undef vec_broadcast_128
+#undef vec_shuffle_32
+      }
+      else if constexpr (OutputDimensions == 1)
+      {
+          // A single row of weights, in the order of the inputs
+#if defined (USE_AVX2)
+          static_assert(InputDimensions % 32 == 0);
+
+          // Clipped ReLU of 32 inputs at a time, as in ClippedReLU
+          const __m256i Offsets = _mm256_set_epi32(7, 3, 6, 2, 5, 1, 4, 0);
+          const auto in = reinterpret_cast<const __m256i*>(input);
+          const auto row = reinterpret_cast<const __m256i*>(weights);
+          __m256i sum = _mm256_setzero_si256();
+
+          for (IndexType i = 0; i < InputDimensions / 32; ++i)
+          {
+              const __m256i words0 = _mm256_srai_epi16(_mm256_packs_epi32(in[i * 4 + 0], in[i * 4 + 1]), WeightScaleBits);
+              const __m256i words1 = _mm256_srai_epi16(_mm256_packs_epi32(in[i * 4 + 2], in[i * 4 + 3]), WeightScaleBits);
+              const __m256i clipped = _mm256_permutevar8x32_epi32(_mm256_max_epi8(
+                  _mm256_packs_epi16(words0, words1), _mm256_setzero_si256()), Offsets);
+              m256_add_dpbusd_epi32(sum, clipped, row[i]);
+          }
+
+          output[0] = m256_hadd(sum, biases[0]);
+#else
+          __m128i sum = _mm_setzero_si128();
+          const auto row = reinterpret_cast<const __m128i*>(weights);
+
+          for (IndexType i = 0; i < InputDimensions; i += 16)
+              m128_add_dpbusd_epi32(sum, clip16(i), row[i / 16]);
+
+          output[0] = m128_hadd(sum, biases[0]);
+#endif
+      }
+
+      return output;
+    }
+
+   private:
+    using BiasType = OutputType;
+    using WeightType = std::int8_t;
+
+    PreviousLayer previousLayer;
+
+    alignas(CacheLineSize) BiasType biases[OutputDimensions];
+    alignas(CacheLineSize) WeightType weights[OutputDimensions * PaddedInputDimensions];
+  };
+
+#endif
+
+}  // namespace Stockfish::Eval::NNUE::Layers
+
+#endif // #ifndef NNUE_LAYERS_CLIPPED_RELU_AFFINE_H_INCLUDED
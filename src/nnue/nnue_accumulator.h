@@ -30,6 +30,44 @@ namespace Stockfish::Eval::NNUE {
     std::int16_t accumulation[2][TransformedFeatureDimensions];
     std::int32_t psqtAccumulation[2][PSQTBuckets];
     bool computed[2];
+    std::uint32_t netId; // Network the accumulation was computed with
+    Key key;             // Position the accumulation was computed for
+  };
+
+  // Class that holds the accumulators of the positions of a thread, indexed by
+  // their distance from the first position of their list of states, so that
+  // do_move() does not touch them and they are only computed when a position
+  // is evaluated. The accumulators are reused by the positions at the same
+  // distance, and an accumulator belongs to the position whose key it records.
+  struct AccumulatorStack {
+    static constexpr int Size = MAX_PLY + 10;
+
+    Accumulator& operator[](int index) { return accumulators[index % Size]; }
+
+    Accumulator accumulators[Size] = {};
+  };
+
+  // Class that holds, for each king square and perspective, the accumulator of
+  // the last refresh with the pieces it was computed for, so that the next
+  // refresh only has to apply the difference
+  struct AccumulatorCache {
+    struct alignas(CacheLineSize) Entry {
+      std::int16_t accumulation[TransformedFeatureDimensions];
+      std::int32_t psqtAccumulation[PSQTBuckets];
+      Bitboard byColorBB[COLOR_NB];
+      Bitboard byTypeBB[PIECE_TYPE_NB];
+      bool computed;
+    };
+
+    void clear(std::uint32_t id) {
+      for (auto& sq : entries)
+        for (auto& entry : sq)
+          entry.computed = false;
+      netId = id;
+    }
+
+    Entry entries[SQUARE_NB][COLOR_NB];
+    std::uint32_t netId = 0; // Network the entries were computed with
   };
 
 }  // namespace Stockfish::Eval::NNUE
@@ -28,6 +28,7 @@
 #include "layers/input_slice.h"
 #include "layers/affine_transform.h"
 #include "layers/clipped_relu.h"
+#include "layers/clipped_relu_affine.h"
 
 namespace Stockfish::Eval::NNUE {
 
@@ -43,17 +44,31 @@ namespace Stockfish::Eval::NNUE {
 
     // Define network structure
     using InputLayer = InputSlice<TransformedFeatureDimensions * 2>;
-    using HiddenLayer1 = ClippedReLU<AffineTransform<InputLayer, 16>>;
+    using InputAffineLayer = AffineTransform<InputLayer, 16, true>;
+    using HiddenLayer1 = ClippedReLU<InputAffineLayer>;
     using HiddenLayer2 = ClippedReLU<AffineTransform<HiddenLayer1, 32>>;
     using OutputLayer = AffineTransform<HiddenLayer2, 1>;
 
+#if defined (USE_SSSE3)
+    // Same network, with each ClippedReLU fused into the following layer
+    using FusedHiddenLayer = ClippedReLUAffine<InputAffineLayer, 32>;
+    using FusedOutputLayer = ClippedReLUAffine<FusedHiddenLayer, 1>;
+#endif
+
   }  // namespace Layers
 
-  using Network = Layers::OutputLayer;
+  using LayeredNetwork = Layers::OutputLayer;
+
+#if defined (USE_SSSE3)
+  using Network = Layers::FusedOutputLayer;
+#else
+  using Network = LayeredNetwork;
+#endif
 
   static_assert(TransformedFeatureDimensions % MaxSimdWidth == 0, "");
   static_assert(Network::OutputDimensions == 1, "");
   static_assert(std::is_same<Network::OutputType, std::int32_t>::value, "");
+  static_assert(Network::get_hash_value() == LayeredNetwork::get_hash_value(), "");
 
 }  // namespace Stockfish::Eval::NNUE
 
@@ -21,8 +21,12 @@
 #ifndef NNUE_COMMON_H_INCLUDED
 #define NNUE_COMMON_H_INCLUDED
 
+#include <algorithm>
+#include <atomic>
 #include <cstring>
 #include <iostream>
+#include <thread>
+#include <vector>
 
 #include "../misc.h"  // for IsLittleEndian
 
@@ -47,8 +51,10 @@
 
 namespace Stockfish::Eval::NNUE {
 
-  // Version of the evaluation file
+  // Version of the evaluation file, and of the evaluation file whose feature
+  // transformer is compressed with write_leb_128()
   constexpr std::uint32_t Version = 0x7AF32F20u;
+  constexpr std::uint32_t CompressedVersion = 0x7AF32F21u;
 
   // Constant used in evaluation value calculation
   constexpr int OutputScale = 16;
@@ -57,6 +63,9 @@ namespace Stockfish::Eval::NNUE {
   // Size of cache line (in bytes)
   constexpr std::size_t CacheLineSize = 64;
 
+  // Number of values of a block of write_leb_128()
+  constexpr std::uint32_t LEB128BlockValues = 1 << 16;
+
   // SIMD width (in bytes)
   #if defined(USE_AVX2)
   constexpr std::size_t SimdWidth = 32;
@@ -159,6 +168,185 @@ namespace Stockfish::Eval::NNUE {
               write_little_endian<IntType>(stream, values[i]);
   }
 
+  // write_leb_128(s, values, N) : write signed integers in bulk to a stream, each
+  // one in signed LEB128, 7 bits per byte starting with the low ones and the high
+  // bit set on all the bytes but the last. The small values of the networks only
+  // take 1 or 2 bytes. The integers are grouped in blocks whose compressed sizes
+  // are written first, so that read_leb_128() can decode the blocks in parallel.
+  template <typename IntType>
+  inline void write_leb_128(std::ostream& stream, const IntType* values, std::size_t count) {
+      static_assert(std::is_signed_v<IntType>);
+
+      constexpr std::uint32_t BlockValues = LEB128BlockValues;
+      const std::size_t blocks = (count + BlockValues - 1) / BlockValues;
+
+      std::vector<std::uint32_t> sizes(blocks);
+      std::vector<std::uint8_t> data;
+      data.reserve(count * 2);
+
+      for (std::size_t b = 0; b < blocks; ++b)
+      {
+          const std::size_t start = data.size();
+
+          for (std::size_t i = b * BlockValues; i < std::min(count, (b + 1) * BlockValues); ++i)
+          {
+              IntType value = values[i];
+              bool more;
+              do {
+                  std::uint8_t byte = value & 0x7f;
+                  value >>= 7;
+                  more = !(value ==  0 && !(byte & 0x40))
+                      && !(value == -1 &&  (byte & 0x40));
+                  data.push_back(byte | (more ? 0x80 : 0));
+              } while (more);
+          }
+
+          sizes[b] = std::uint32_t(data.size() - start);
+      }
+
+      write_little_endian<std::uint32_t>(stream, BlockValues);
+      write_little_endian<std::uint32_t>(stream, sizes.data(), blocks);
+      stream.write(reinterpret_cast<const char*>(data.data()), data.size());
+  }
+
+  // read_leb_128(s, out, N) : read N signed integers written by write_leb_128()
+  // from stream s and put them in array out. The blocks are decoded by as many
+  // threads as there are hardware threads. On malformed data, including block
+  // sizes that N values cannot take, the failbit of the stream is set before
+  // anything is allocated from them.
+  template <typename IntType>
+  inline void read_leb_128(std::istream& stream, IntType* out, std::size_t count) {
+      static_assert(std::is_signed_v<IntType>);
+
+      constexpr std::size_t MaxBytes = (8 * sizeof(IntType) + 6) / 7;
+
+      const std::uint32_t blockValues = read_little_endian<std::uint32_t>(stream);
+      if (!stream || blockValues != LEB128BlockValues)
+      {
+          stream.setstate(std::ios::failbit);
+          return;
+      }
+
+      const std::size_t blocks = (count + blockValues - 1) / blockValues;
+      std::vector<std::uint32_t> sizes(blocks);
+      read_little_endian<std::uint32_t>(stream, sizes.data(), blocks);
+
+      std::vector<std::size_t> offsets(blocks + 1, 0);
+      for (std::size_t b = 0; b < blocks && stream; ++b)
+      {
+          // Each value takes from 1 to MaxBytes bytes
+          const std::size_t values = std::min<std::size_t>(count - b * blockValues, blockValues);
+          if (sizes[b] < values || sizes[b] > values * MaxBytes)
+              stream.setstate(std::ios::failbit);
+
+          offsets[b + 1] = offsets[b] + sizes[b];
+      }
+
+      if (!stream)
+          return;
+
+      std::vector<std::uint8_t> data;
+      std::size_t dataOffset = 0;
+      std::atomic<bool> valid(true);
+
+      auto decode = [&](std::size_t firstBlock, std::size_t lastBlock) {
+          for (std::size_t b = firstBlock; b < lastBlock; ++b)
+          {
+              const std::uint8_t* p   = data.data() + offsets[b] - dataOffset;
+              const std::uint8_t* end = data.data() + offsets[b + 1] - dataOffset;
+
+              const std::size_t last = std::min<std::size_t>(count, (b + 1) * blockValues);
+
+              for (std::size_t i = b * blockValues; i < last; ++i)
+              {
+                  // Fast path for 16 values of a single byte, copied out of the
+                  // data so that the compiler knows out does not alias them and
+                  // vectorizes the loop.
+                  std::uint8_t chunk[16];
+                  std::uint64_t highBits[2];
+                  if (end - p >= 16 && last - i >= 16)
+                  {
+                      std::memcpy(chunk, p, 16);
+                      std::memcpy(highBits, chunk, 16);
+                      if (!((highBits[0] | highBits[1]) & 0x8080808080808080ULL))
+                      {
+                          for (int k = 0; k < 16; ++k)
+                              out[i + k] = IntType(std::int8_t(chunk[k] << 1) >> 1);
+
+                          p += 16;
+                          i += 15;
+                          continue;
+                      }
+                  }
+
+                  // Fast path for the most common case of a single byte
+                  if (p != end && !(*p & 0x80))
+                  {
+                      out[i] = IntType(std::int8_t(*p++ << 1) >> 1);
+                      continue;
+                  }
+
+                  std::uint64_t result = 0;
+                  unsigned shift = 0;
+                  std::uint8_t byte;
+                  do {
+                      if (p == end || shift >= 8 * sizeof(IntType))
+                      {
+                          valid = false;
+                          return;
+                      }
+                      byte = *p++;
+                      result |= std::uint64_t(byte & 0x7f) << shift;
+                      shift += 7;
+                  } while (byte & 0x80);
+
+                  if (byte & 0x40)
+                      result |= ~std::uint64_t(0) << shift;
+
+                  out[i] = IntType(std::int64_t(result));
+              }
+
+              if (p != end)
+              {
+                  valid = false;
+                  return;
+              }
+          }
+      };
+
+      // The blocks are read and decoded a few per thread at a time, through a
+      // buffer that is allocated once and stays in the caches: reading the
+      // whole data in a new buffer first costs more, in page faults, than the
+      // raw read of the whole network.
+      const std::size_t threadCount = std::clamp<std::size_t>(std::thread::hardware_concurrency(), 1, blocks ? blocks : 1);
+      const std::size_t groupBlocks = 4 * threadCount;
+
+      for (std::size_t first = 0; first < blocks && valid; first += groupBlocks)
+      {
+          const std::size_t last = std::min(blocks, first + groupBlocks);
+
+          dataOffset = offsets[first];
+          data.resize(offsets[last] - dataOffset);
+          stream.read(reinterpret_cast<char*>(data.data()), data.size());
+          if (!stream)
+              return;
+
+          std::vector<std::thread> threads;
+          const std::size_t n = last - first, groupThreads = std::min(threadCount, n);
+
+          for (std::size_t t = 1; t < groupThreads; ++t)
+              threads.emplace_back(decode, first + n * t / groupThreads, first + n * (t + 1) / groupThreads);
+
+          decode(first, first + n / groupThreads);
+
+          for (std::thread& th : threads)
+              th.join();
+      }
+
+      if (!valid)
+          stream.setstate(std::ios::failbit);
+  }
+
 }  // namespace Stockfish::Eval::NNUE
 
 #endif // #ifndef NNUE_COMMON_H_INCLUDED
@@ -23,6 +23,7 @@
 
 #include "nnue_common.h"
 #include "nnue_architecture.h"
+#include "nnue_accumulator.h"
 
 #include <cstring> // std::memset()
 
@@ -194,34 +195,55 @@ namespace Stockfish::Eval::NNUE {
       return FeatureSet::HashValue ^ OutputDimensions;
     }
 
-    // Read network parameters
-    bool read_parameters(std::istream& stream) {
+    // Read network parameters, in little-endian order or compressed in LEB128
+    bool read_parameters(std::istream& stream, bool compressed = false) {
 
-      read_little_endian<BiasType      >(stream, biases     , HalfDimensions                  );
-      read_little_endian<WeightType    >(stream, weights    , HalfDimensions * InputDimensions);
-      read_little_endian<PSQTWeightType>(stream, psqtWeights, PSQTBuckets    * InputDimensions);
+      if (compressed)
+      {
+        read_leb_128<BiasType      >(stream, biases     , HalfDimensions                  );
+        read_leb_128<WeightType    >(stream, weights    , HalfDimensions * InputDimensions);
+        read_leb_128<PSQTWeightType>(stream, psqtWeights, PSQTBuckets    * InputDimensions);
+      }
+      else
+      {
+        read_little_endian<BiasType      >(stream, biases     , HalfDimensions                  );
+        read_little_endian<WeightType    >(stream, weights    , HalfDimensions * InputDimensions);
+        read_little_endian<PSQTWeightType>(stream, psqtWeights, PSQTBuckets    * InputDimensions);
+      }
 
       return !stream.fail();
     }
 
-    // Write network parameters
-    bool write_parameters(std::ostream& stream) const {
+    // Write network parameters, in little-endian order or compressed in LEB128
+    bool write_parameters(std::ostream& stream, bool compressed = false) const {
 
-      write_little_endian<BiasType      >(stream, biases     , HalfDimensions                  );
-      write_little_endian<WeightType    >(stream, weights    , HalfDimensions * InputDimensions);
-      write_little_endian<PSQTWeightType>(stream, psqtWeights, PSQTBuckets    * InputDimensions);
+      if (compressed)
+      {
+        write_leb_128<BiasType      >(stream, biases     , HalfDimensions                  );
+        write_leb_128<WeightType    >(stream, weights    , HalfDimensions * InputDimensions);
+        write_leb_128<PSQTWeightType>(stream, psqtWeights, PSQTBuckets    * InputDimensions);
+      }
+      else
+      {
+        write_little_endian<BiasType      >(stream, biases     , HalfDimensions                  );
+        write_little_endian<WeightType    >(stream, weights    , HalfDimensions * InputDimensions);
+        write_little_endian<PSQTWeightType>(stream, psqtWeights, PSQTBuckets    * InputDimensions);
+      }
 
       return !stream.fail();
     }
 
     // Convert input features
-    std::int32_t transform(const Position& pos, OutputType* output, int bucket) const {
-      update_accumulator(pos, WHITE);
-      update_accumulator(pos, BLACK);
+    std::int32_t transform(const Position& pos, AccumulatorStack& stack, AccumulatorCache& cache,
+                           OutputType* output, int bucket) const {
+      update_accumulator(pos, stack, cache, WHITE);
+      update_accumulator(pos, stack, cache, BLACK);
+
+      ASSERT_ALIGNED(&stack[pos.state()->accumulatorIndex], CacheLineSize);
 
       const Color perspectives[2] = {pos.side_to_move(), ~pos.side_to_move()};
-      const auto& accumulation = pos.state()->accumulator.accumulation;
-      const auto& psqtAccumulation = pos.state()->accumulator.psqtAccumulation;
+      const auto& accumulation = stack[pos.state()->accumulatorIndex].accumulation;
+      const auto& psqtAccumulation = stack[pos.state()->accumulatorIndex].psqtAccumulation;
 
       const auto psqt = (
             psqtAccumulation[perspectives[0]][bucket]
@@ -364,7 +386,8 @@ namespace Stockfish::Eval::NNUE {
 
 
    private:
-    void update_accumulator(const Position& pos, const Color perspective) const {
+    void update_accumulator(const Position& pos, AccumulatorStack& stack, AccumulatorCache& cache,
+                            const Color perspective) const {
 
       // The size must be enough to contain the largest possible update.
       // That might depend on the feature set and generally relies on the
@@ -379,11 +402,30 @@ namespace Stockfish::Eval::NNUE {
       psqt_vec_t psqt[NumPsqtRegs];
   #endif
 
+      // An accumulator is usable only if it was computed for this position and
+      // with this network, which is not the case before the capture switching
+      // to the endgame one.
+      auto usable = [&](const StateInfo* s) {
+        const Accumulator& a = stack[s->accumulatorIndex];
+        return a.computed[perspective] && a.key == s->key && a.netId == cache.netId;
+      };
+
+      auto mark_computed = [&](const StateInfo* s) {
+        Accumulator& a = stack[s->accumulatorIndex];
+        if (a.key != s->key || a.netId != cache.netId)
+        {
+          a.computed[~perspective] = false;
+          a.key = s->key;
+          a.netId = cache.netId;
+        }
+        a.computed[perspective] = true;
+      };
+
       // Look for a usable accumulator of an earlier position. We keep track
       // of the estimated gain in terms of features to be added/subtracted.
       StateInfo *st = pos.state(), *next = nullptr;
       int gain = FeatureSet::refresh_cost(pos);
-      while (st->previous && !st->accumulator.computed[perspective])
+      while (st->previous && !usable(st))
       {
         // This governs when a full feature refresh is needed and how many
         // updates are better than just one full refresh.
@@ -394,7 +436,7 @@ namespace Stockfish::Eval::NNUE {
         st = st->previous;
       }
 
-      if (st->accumulator.computed[perspective])
+      if (usable(st))
       {
         if (next == nullptr)
           return;
@@ -411,23 +453,40 @@ namespace Stockfish::Eval::NNUE {
           FeatureSet::append_changed_indices(
             ksq, st2, perspective, removed[1], added[1]);
 
+        // Over several plies, a feature removed by a move and added back by
+        // another one, as when a piece moves twice, cancels out.
+        for (std::size_t i = 0; i < removed[1].size(); )
+        {
+          IndexType* match = std::find(added[1].begin(), added[1].end(), removed[1][i]);
+          if (match == added[1].end())
+          {
+            ++i;
+            continue;
+          }
+          *match = added[1][added[1].size() - 1];
+          added[1].resize(added[1].size() - 1);
+          removed[1][i] = removed[1][removed[1].size() - 1];
+          removed[1].resize(removed[1].size() - 1);
+        }
+
         // Mark the accumulators as computed.
-        next->accumulator.computed[perspective] = true;
-        pos.state()->accumulator.computed[perspective] = true;
+        mark_computed(next);
+        mark_computed(pos.state());
 
-        // Now update the accumulators listed in states_to_update[], where the last element is a sentinel.
-        StateInfo *states_to_update[3] =
-          { next, next == pos.state() ? nullptr : pos.state(), nullptr };
+        // Now update the accumulators listed in accumulators_to_update[], where the last element is a sentinel.
+        Accumulator* source = &stack[st->accumulatorIndex];
+        Accumulator* accumulators_to_update[3] =
+          { &stack[next->accumulatorIndex], next == pos.state() ? nullptr : &stack[pos.state()->accumulatorIndex], nullptr };
   #ifdef VECTOR
         for (IndexType j = 0; j < HalfDimensions / TileHeight; ++j)
         {
           // Load accumulator
           auto accTile = reinterpret_cast<vec_t*>(
-            &st->accumulator.accumulation[perspective][j * TileHeight]);
+            &source->accumulation[perspective][j * TileHeight]);
           for (IndexType k = 0; k < NumRegs; ++k)
             acc[k] = vec_load(&accTile[k]);
 
-          for (IndexType i = 0; states_to_update[i]; ++i)
+          for (IndexType i = 0; accumulators_to_update[i]; ++i)
           {
             // Difference calculation for the deactivated features
             for (const auto index : removed[i])
@@ -449,7 +508,7 @@ namespace Stockfish::Eval::NNUE {
 
             // Store accumulator
             accTile = reinterpret_cast<vec_t*>(
-              &states_to_update[i]->accumulator.accumulation[perspective][j * TileHeight]);
+              &accumulators_to_update[i]->accumulation[perspective][j * TileHeight]);
             for (IndexType k = 0; k < NumRegs; ++k)
               vec_store(&accTile[k], acc[k]);
           }
@@ -459,11 +518,11 @@ namespace Stockfish::Eval::NNUE {
         {
           // Load accumulator
           auto accTilePsqt = reinterpret_cast<psqt_vec_t*>(
-            &st->accumulator.psqtAccumulation[perspective][j * PsqtTileHeight]);
+            &source->psqtAccumulation[perspective][j * PsqtTileHeight]);
           for (std::size_t k = 0; k < NumPsqtRegs; ++k)
             psqt[k] = vec_load_psqt(&accTilePsqt[k]);
 
-          for (IndexType i = 0; states_to_update[i]; ++i)
+          for (IndexType i = 0; accumulators_to_update[i]; ++i)
           {
             // Difference calculation for the deactivated features
             for (const auto index : removed[i])
@@ -485,23 +544,23 @@ namespace Stockfish::Eval::NNUE {
 
             // Store accumulator
             accTilePsqt = reinterpret_cast<psqt_vec_t*>(
-              &states_to_update[i]->accumulator.psqtAccumulation[perspective][j * PsqtTileHeight]);
+              &accumulators_to_update[i]->psqtAccumulation[perspective][j * PsqtTileHeight]);
             for (std::size_t k = 0; k < NumPsqtRegs; ++k)
               vec_store_psqt(&accTilePsqt[k], psqt[k]);
           }
         }
 
   #else
-        for (IndexType i = 0; states_to_update[i]; ++i)
+        for (IndexType i = 0; accumulators_to_update[i]; ++i)
         {
-          std::memcpy(states_to_update[i]->accumulator.accumulation[perspective],
-              st->accumulator.accumulation[perspective],
+          std::memcpy(accumulators_to_update[i]->accumulation[perspective],
+              source->accumulation[perspective],
               HalfDimensions * sizeof(BiasType));
 
           for (std::size_t k = 0; k < PSQTBuckets; ++k)
-            states_to_update[i]->accumulator.psqtAccumulation[perspective][k] = st->accumulator.psqtAccumulation[perspective][k];
+            accumulators_to_update[i]->psqtAccumulation[perspective][k] = source->psqtAccumulation[perspective][k];
 
-          st = states_to_update[i];
+          source = accumulators_to_update[i];
 
           // Difference calculation for the deactivated features
           for (const auto index : removed[i])
@@ -509,10 +568,10 @@ namespace Stockfish::Eval::NNUE {
             const IndexType offset = HalfDimensions * index;
 
             for (IndexType j = 0; j < HalfDimensions; ++j)
-              st->accumulator.accumulation[perspective][j] -= weights[offset + j];
+              source->accumulation[perspective][j] -= weights[offset + j];
 
             for (std::size_t k = 0; k < PSQTBuckets; ++k)
-              st->accumulator.psqtAccumulation[perspective][k] -= psqtWeights[index * PSQTBuckets + k];
+              source->psqtAccumulation[perspective][k] -= psqtWeights[index * PSQTBuckets + k];
           }
 
           // Difference calculation for the activated features
@@ -521,31 +580,60 @@ namespace Stockfish::Eval::NNUE {
             const IndexType offset = HalfDimensions * index;
 
             for (IndexType j = 0; j < HalfDimensions; ++j)
-              st->accumulator.accumulation[perspective][j] += weights[offset + j];
+              source->accumulation[perspective][j] += weights[offset + j];
 
             for (std::size_t k = 0; k < PSQTBuckets; ++k)
-              st->accumulator.psqtAccumulation[perspective][k] += psqtWeights[index * PSQTBuckets + k];
+              source->psqtAccumulation[perspective][k] += psqtWeights[index * PSQTBuckets + k];
           }
         }
   #endif
       }
       else
       {
-        // Refresh the accumulator
-        auto& accumulator = pos.state()->accumulator;
-        accumulator.computed[perspective] = true;
-        IndexList active;
-        FeatureSet::append_active_indices(pos, perspective, active);
+        // Refresh the accumulator, starting from the accumulator of the last
+        // refresh with the same king square and applying the changed features.
+        // The cached accumulator is reset first if it is cheaper to start from
+        // the empty board.
+        auto& accumulator = stack[pos.state()->accumulatorIndex];
+        auto& entry = cache.entries[pos.square<KING>(perspective)][perspective];
+        mark_computed(pos.state());
+
+        IndexList removed, added;
+        if (entry.computed)
+            FeatureSet::append_changed_indices(pos, perspective, entry.byColorBB, entry.byTypeBB, removed, added);
+
+        if (   !entry.computed
+            || int(removed.size() + added.size()) > FeatureSet::refresh_cost(pos))
+        {
+            std::memcpy(entry.accumulation, biases, HalfDimensions * sizeof(BiasType));
+            std::memset(entry.psqtAccumulation, 0, PSQTBuckets * sizeof(PSQTWeightType));
+            std::memset(entry.byColorBB, 0, sizeof(entry.byColorBB));
+            std::memset(entry.byTypeBB, 0, sizeof(entry.byTypeBB));
+            entry.computed = true;
+
+            removed.resize(0);
+            added.resize(0);
+            FeatureSet::append_changed_indices(pos, perspective, entry.byColorBB, entry.byTypeBB, removed, added);
+        }
 
   #ifdef VECTOR
         for (IndexType j = 0; j < HalfDimensions / TileHeight; ++j)
         {
-          auto biasesTile = reinterpret_cast<const vec_t*>(
-              &biases[j * TileHeight]);
+          auto entryTile = reinterpret_cast<vec_t*>(
+              &entry.accumulation[j * TileHeight]);
           for (IndexType k = 0; k < NumRegs; ++k)
-            acc[k] = biasesTile[k];
+            acc[k] = vec_load(&entryTile[k]);
 
-          for (const auto index : active)
+          for (const auto index : removed)
+          {
+            const IndexType offset = HalfDimensions * index + j * TileHeight;
+            auto column = reinterpret_cast<const vec_t*>(&weights[offset]);
+
+            for (unsigned k = 0; k < NumRegs; ++k)
+              acc[k] = vec_sub_16(acc[k], column[k]);
+          }
+
+          for (const auto index : added)
           {
             const IndexType offset = HalfDimensions * index + j * TileHeight;
             auto column = reinterpret_cast<const vec_t*>(&weights[offset]);
@@ -557,15 +645,29 @@ namespace Stockfish::Eval::NNUE {
           auto accTile = reinterpret_cast<vec_t*>(
               &accumulator.accumulation[perspective][j * TileHeight]);
           for (unsigned k = 0; k < NumRegs; k++)
+          {
+            vec_store(&entryTile[k], acc[k]);
             vec_store(&accTile[k], acc[k]);
+          }
         }
 
         for (IndexType j = 0; j < PSQTBuckets / PsqtTileHeight; ++j)
         {
+          auto entryTilePsqt = reinterpret_cast<psqt_vec_t*>(
+              &entry.psqtAccumulation[j * PsqtTileHeight]);
           for (std::size_t k = 0; k < NumPsqtRegs; ++k)
-            psqt[k] = vec_zero_psqt();
+            psqt[k] = vec_load_psqt(&entryTilePsqt[k]);
+
+          for (const auto index : removed)
+          {
+            const IndexType offset = PSQTBuckets * index + j * PsqtTileHeight;
+            auto columnPsqt = reinterpret_cast<const psqt_vec_t*>(&psqtWeights[offset]);
+
+            for (std::size_t k = 0; k < NumPsqtRegs; ++k)
+              psqt[k] = vec_sub_psqt_32(psqt[k], columnPsqt[k]);
+          }
 
-          for (const auto index : active)
+          for (const auto index : added)
           {
             const IndexType offset = PSQTBuckets * index + j * PsqtTileHeight;
             auto columnPsqt = reinterpret_cast<const psqt_vec_t*>(&psqtWeights[offset]);
@@ -577,27 +679,45 @@ namespace Stockfish::Eval::NNUE {
           auto accTilePsqt = reinterpret_cast<psqt_vec_t*>(
             &accumulator.psqtAccumulation[perspective][j * PsqtTileHeight]);
           for (std::size_t k = 0; k < NumPsqtRegs; ++k)
+          {
+            vec_store_psqt(&entryTilePsqt[k], psqt[k]);
             vec_store_psqt(&accTilePsqt[k], psqt[k]);
+          }
         }
 
   #else
-        std::memcpy(accumulator.accumulation[perspective], biases,
-            HalfDimensions * sizeof(BiasType));
+        for (const auto index : removed)
+        {
+          const IndexType offset = HalfDimensions * index;
+
+          for (IndexType j = 0; j < HalfDimensions; ++j)
+            entry.accumulation[j] -= weights[offset + j];
 
-        for (std::size_t k = 0; k < PSQTBuckets; ++k)
-          accumulator.psqtAccumulation[perspective][k] = 0;
+          for (std::size_t k = 0; k < PSQTBuckets; ++k)
+            entry.psqtAccumulation[k] -= psqtWeights[index * PSQTBuckets + k];
+        }
 
-        for (const auto index : active)
+        for (const auto index : added)
         {
           const IndexType offset = HalfDimensions * index;
 
           for (IndexType j = 0; j < HalfDimensions; ++j)
-            accumulator.accumulation[perspective][j] += weights[offset + j];
+            entry.accumulation[j] += weights[offset + j];
 
           for (std::size_t k = 0; k < PSQTBuckets; ++k)
-            accumulator.psqtAccumulation[perspective][k] += psqtWeights[index * PSQTBuckets + k];
+            entry.psqtAccumulation[k] += psqtWeights[index * PSQTBuckets + k];
         }
+
+        std::memcpy(accumulator.accumulation[perspective], entry.accumulation,
+            HalfDimensions * sizeof(BiasType));
+        std::memcpy(accumulator.psqtAccumulation[perspective], entry.psqtAccumulation,
+            PSQTBuckets * sizeof(PSQTWeightType));
   #endif
+
+        for (Color c : { WHITE, BLACK })
+          entry.byColorBB[c] = pos.pieces(c);
+        for (PieceType pt = PAWN; pt <= KING; ++pt)
+          entry.byTypeBB[pt] = pos.pieces(pt);
       }
 
   #if defined(USE_MMX)
@@ -59,7 +59,7 @@ struct StateInfo {
   int        repetition;
 
   // Used by NNUE
-  Eval::NNUE::Accumulator accumulator;
+  int        accumulatorIndex;
   DirtyPiece dirtyPiece;
 };
 
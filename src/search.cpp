@@ -23,6 +23,7 @@
 #include <iostream>
 #include <sstream>
 
+#include "cluster.h"
 #include "evaluate.h"
 #include "misc.h"
 #include "movegen.h"
@@ -102,6 +103,126 @@ namespace {
     Move best = MOVE_NONE;
   };
 
+  // ABDADA: when searching with several threads, after the first move of a
+  // node a thread defers the moves to a position already being searched at the
+  // same depth by another thread, and searches them after the other moves, when
+  // their result is likely to be found in the transposition table.
+  constexpr Depth DeferMinDepth = 4;
+  bool deferMoves;
+
+  // SearchingTable keeps, for each of its slots, the last position whose
+  // search was started at a given depth by one of the threads and is not
+  // finished yet.
+  constexpr size_t SearchingTableSize = 1 << 15;
+  std::atomic<Key> SearchingTable[SearchingTableSize];
+
+  Key searching_entry(Key key, Depth d) { return key ^ (Key(d) << 56); }
+
+  bool is_searching(Key key, Depth d) {
+    return SearchingTable[key & (SearchingTableSize - 1)].load(std::memory_order_relaxed) == searching_entry(key, d);
+  }
+
+  // SearchingMarker is a scope guard marking a position as being searched
+  struct SearchingMarker {
+
+    SearchingMarker(bool on, Key key, Depth d)
+      : slot(on ? &SearchingTable[key & (SearchingTableSize - 1)] : nullptr), value(searching_entry(key, d)) {
+      if (slot)
+          slot->store(value, std::memory_order_relaxed);
+    }
+
+    ~SearchingMarker() {
+      Key expected = value;
+      if (slot)
+          slot->compare_exchange_strong(expected, 0, std::memory_order_relaxed);
+    }
+
+    std::atomic<Key>* slot;
+    Key value;
+  };
+
+  // Split MultiPV: with several MultiPV lines, the lines are split among groups
+  // of threads instead of being searched one after the other by every thread.
+  // Line i is searched by the threads whose index is i modulo the number of
+  // groups, among the root moves but the best ones found so far by all groups.
+  size_t splitGroups;
+
+  // SplitLines gathers the lines completed by all the groups of threads, at
+  // most one per root move, which the threads merge into their root moves
+  // before searching each of their lines.
+  struct SplitLines {
+
+    void clear() {
+      std::lock_guard<std::mutex> lock(mutex);
+      lines.clear();
+    }
+
+    // publish() records the line of the best of the given root moves, just
+    // searched at depth d, and drops the lines of the other moves of the range
+    // whose score is above it, which are outdated.
+    void publish(RootMoves::const_iterator first, RootMoves::const_iterator last, Depth d) {
+
+      std::lock_guard<std::mutex> lock(mutex);
+
+      const RootMove& best = *first;
+      lines.erase(std::remove_if(lines.begin(), lines.end(), [&](const Line& l) {
+                      return    l.rm.score > best.score
+                             && std::find(first + 1, last, l.rm.pv[0]) != last; }),
+                  lines.end());
+
+      auto it = std::find_if(lines.begin(), lines.end(), [&](const Line& l) { return l.rm.pv[0] == best.pv[0]; });
+      if (it == lines.end())
+          lines.push_back({ best, d });
+      else if (d >= it->depth)
+          *it = { best, d };
+    }
+
+    // merge() brings the moves of the lines completed at depth minDepth or more,
+    // with their pv and score and in the order of their depths and scores, to
+    // the front of the given root moves, keeping the root moves of equal
+    // tablebase rank together. depths receives the depth of the line of each
+    // root move holding one, 0 for the others.
+    void merge(RootMoves& rootMoves, Depth minDepth, std::vector<Depth>& depths) {
+
+      std::lock_guard<std::mutex> lock(mutex);
+
+      std::stable_sort(lines.begin(), lines.end(), [](const Line& a, const Line& b) {
+                           return a.depth != b.depth ? a.depth > b.depth : a.rm.score > b.rm.score; });
+
+      auto next = rootMoves.begin();
+      for (const Line& l : lines)
+      {
+          auto it = std::find(next, rootMoves.end(), l.rm.pv[0]);
+          if (l.depth < minDepth || it == rootMoves.end())
+              continue;
+
+          *it = l.rm;
+          it->previousScore = l.rm.score;
+          std::rotate(next++, it, it + 1);
+      }
+
+      std::stable_sort(rootMoves.begin(), rootMoves.end(), [](const RootMove &a, const RootMove &b) {
+                           return a.tbRank > b.tbRank; });
+
+      depths.assign(rootMoves.size(), 0);
+      for (size_t i = 0; i < rootMoves.size(); ++i)
+          for (const Line& l : lines)
+              if (l.rm.pv == rootMoves[i].pv && l.rm.score == rootMoves[i].score)
+                  depths[i] = l.depth;
+    }
+
+  private:
+    struct Line {
+      RootMove rm;
+      Depth depth;
+    };
+
+    std::mutex mutex;
+    std::vector<Line> lines;
+  };
+
+  SplitLines splitLines;
+
   template <NodeType nodeType>
   Value search(Position& pos, Stack* ss, Value alpha, Value beta, Depth depth, bool cutNode);
 
@@ -111,6 +232,10 @@ namespace {
   Value value_to_tt(Value v, int ply);
   Value value_from_tt(Value v, int ply, int r50c);
   void update_pv(Move* pv, Move move, Move* childPv);
+  void update_pv_table(const Position& root, const RootMoves& rootMoves, size_t multiPV);
+  std::vector<Move> pv_tail(const Position& root, const std::vector<Move>& pv);
+  string pv_info(const Position& pos, const RootMoves& rootMoves, size_t pvIdx, Depth depth, Value alpha, Value beta,
+                 const std::vector<Depth>& lineDepths = {});
   void update_continuation_histories(Stack* ss, Piece pc, Square to, int bonus);
   void update_quiet_stats(const Position& pos, Stack* ss, Move move, int bonus, int depth);
   void update_all_stats(const Position& pos, Stack* ss, Move bestMove, Value bestValue, Value beta, Square prevSq,
@@ -122,7 +247,6 @@ namespace {
   uint64_t perft(Position& pos, Depth depth) {
 
     StateInfo st;
-    ASSERT_ALIGNED(&st, Eval::NNUE::CacheLineSize);
 
     uint64_t cnt, nodes = 0;
     const bool leaf = (depth == 2);
@@ -163,7 +287,18 @@ void Search::clear() {
   Threads.main()->wait_for_search_finished();
 
   Time.availableNodes = 0;
-  TT.clear();
+
+  // A table shared with other processes is cleared only on explicit request
+  if (!TT.shared())
+  {
+      if (Options["Async Clear Hash"])
+          TT.clear_async();
+      else
+          TT.clear();
+  }
+
+  PVT.clear();
+
   Threads.clear();
   Tablebases::init(Options["SyzygyPath"]); // Free mapped files
 }
@@ -187,6 +322,12 @@ void MainThread::search() {
 
   Eval::NNUE::verify();
 
+  deferMoves = Options["ABDADA"] && Threads.size() > 1;
+
+  splitGroups = Options["Split MultiPV"] ? std::min({ size_t(Options["MultiPV"]), rootMoves.size(), Threads.size() })
+                                        : 1;
+  splitLines.clear();
+
   if (rootMoves.empty())
   {
       rootMoves.emplace_back(MOVE_NONE);
@@ -216,29 +357,70 @@ void MainThread::search() {
   // Wait until all threads have finished
   Threads.wait_for_search_finished();
 
+  // Gather the last lines of all the groups of threads
+  std::vector<Depth> lineDepths;
+  if (splitGroups > 1)
+      splitLines.merge(rootMoves, rootDepth - 1, lineDepths);
+
   // When playing in 'nodes as time' mode, subtract the searched nodes from
   // the available ones before exiting.
   if (Limits.npmsec)
       Time.availableNodes += Limits.inc[us] - Threads.nodes_searched();
 
   Thread* bestThread = this;
+  bool vote =    int(Options["MultiPV"]) == 1
+              && !Limits.depth
+              && !(Skill(Options["Skill Level"]).enabled() || int(Options["UCI_LimitStrength"]))
+              && rootMoves[0].pv[0] != MOVE_NONE;
 
-  if (   int(Options["MultiPV"]) == 1
-      && !Limits.depth
-      && !(Skill(Options["Skill Level"]).enabled() || int(Options["UCI_LimitStrength"]))
-      && rootMoves[0].pv[0] != MOVE_NONE)
+  if (vote)
       bestThread = Threads.get_best_thread();
 
-  bestPreviousScore = bestThread->rootMoves[0].score;
+  // Stop the other processes of a cluster, and let their best moves take part
+  // in the vote. A worker sends its best move to the coordinator instead.
+  bool remoteWon = false;
+  Cluster::Result remote;
+
+  if (Cluster::is_worker())
+      Cluster::send_result(bestThread);
+  else if (Cluster::active())
+  {
+      // Wait for the results of the workers within the time left for this
+      // move, but at least a few ms, or for up to 2 seconds without a time limit.
+      TimePoint timeout = 2000;
+      if (Limits.use_time_management() || Limits.movetime)
+          timeout = std::max(  (Limits.movetime ? Limits.movetime : Time.maximum())
+                             - Time.elapsed() - TimePoint(Options["Move Overhead"]), TimePoint(10));
+
+      remoteWon = Cluster::finish_search(bestThread, vote, timeout, remote);
+  }
+
+  // The line of a worker winning the vote is reported with a copy of the root
+  // move it starts with, which keeps the root moves of this process untouched.
+  RootMoves remoteLine;
+  if (remoteWon)
+  {
+      remoteLine.push_back(*std::find(bestThread->rootMoves.begin(), bestThread->rootMoves.end(), remote.pv[0]));
+      remoteLine[0].pv = remote.pv;
+      remoteLine[0].score = remote.score;
+      remoteLine[0].selDepth = remote.selDepth;
+  }
+
+  RootMove& best = remoteWon ? remoteLine[0] : bestThread->rootMoves[0];
+  bestPreviousScore = best.score;
 
-  // Send again PV info if we have a new best thread
-  if (bestThread != this)
+  // Send again PV info if we have a new best thread or merged lines
+  if (remoteWon)
+      sync_cout << pv_info(rootPos, remoteLine, 0, remote.depth, -VALUE_INFINITE, VALUE_INFINITE) << sync_endl;
+  else if (splitGroups > 1)
+      sync_cout << pv_info(rootPos, rootMoves, pvIdx, completedDepth, -VALUE_INFINITE, VALUE_INFINITE, lineDepths) << sync_endl;
+  else if (bestThread != this)
       sync_cout << UCI::pv(bestThread->rootPos, bestThread->completedDepth, -VALUE_INFINITE, VALUE_INFINITE) << sync_endl;
 
-  sync_cout << "bestmove " << UCI::move(bestThread->rootMoves[0].pv[0], rootPos.is_chess960());
+  sync_cout << "bestmove " << UCI::move(best.pv[0], rootPos.is_chess960());
 
-  if (bestThread->rootMoves[0].pv.size() > 1 || bestThread->rootMoves[0].extract_ponder_from_tt(rootPos))
-      std::cout << " ponder " << UCI::move(bestThread->rootMoves[0].pv[1], rootPos.is_chess960());
+  if (best.pv.size() > 1 || best.extract_ponder_from_tt(rootPos))
+      std::cout << " ponder " << UCI::move(best.pv[1], rootPos.is_chess960());
 
   std::cout << sync_endl;
 }
@@ -263,6 +445,7 @@ void Thread::search() {
   double timeReduction = 1, totBestMoveChanges = 0;
   Color us = rootPos.side_to_move();
   int iterIdx = 0;
+  std::vector<Depth> lineDepths; // Depths of the lines merged with split lines
 
   std::memset(ss-7, 0, 10 * sizeof(Stack));
   for (int i = 7; i > 0; i--)
@@ -339,7 +522,19 @@ void Thread::search() {
       // MultiPV loop. We perform a full root search for each PV line
       for (pvIdx = 0; pvIdx < multiPV && !Threads.stop; ++pvIdx)
       {
-          if (pvIdx == pvLast)
+          // With split lines, search only the lines of our group, among the root
+          // moves of the same tablebase rank but the best ones of all the groups.
+          if (splitGroups > 1)
+          {
+              if (pvIdx % splitGroups != idx % splitGroups)
+                  continue;
+
+              splitLines.merge(rootMoves, rootDepth - 1, lineDepths);
+
+              for (pvFirst = pvIdx; pvFirst > 0 && rootMoves[pvFirst - 1].tbRank == rootMoves[pvIdx].tbRank; --pvFirst) {}
+              for (pvLast = pvIdx + 1; pvLast < rootMoves.size() && rootMoves[pvLast].tbRank == rootMoves[pvIdx].tbRank; ++pvLast) {}
+          }
+          else if (pvIdx == pvLast)
           {
               pvFirst = pvLast;
               for (pvLast++; pvLast < rootMoves.size(); pvLast++)
@@ -420,7 +615,23 @@ void Thread::search() {
               assert(alpha >= -VALUE_INFINITE && beta <= VALUE_INFINITE);
           }
 
-          // Sort the PV lines searched so far and update the GUI
+          // Sort the PV lines searched so far and update the GUI. With split
+          // lines, publish the line and merge the lines of all the groups.
+          if (splitGroups > 1)
+          {
+              if (!Threads.stop)
+                  splitLines.publish(rootMoves.begin() + pvIdx, rootMoves.begin() + pvLast, rootDepth);
+
+              if (    mainThread
+                  && (Threads.stop || pvIdx + splitGroups >= multiPV || Time.elapsed() > 3000))
+              {
+                  // The published lines are exact, at the depth they were completed at
+                  splitLines.merge(rootMoves, rootDepth - 1, lineDepths);
+                  sync_cout << pv_info(rootPos, rootMoves, pvIdx, rootDepth, -VALUE_INFINITE, VALUE_INFINITE, lineDepths) << sync_endl;
+              }
+              continue;
+          }
+
           std::stable_sort(rootMoves.begin() + pvFirst, rootMoves.begin() + pvIdx + 1);
 
           if (    mainThread
@@ -429,8 +640,13 @@ void Thread::search() {
       }
 
       if (!Threads.stop)
+      {
           completedDepth = rootDepth;
 
+          if (mainThread)
+              update_pv_table(rootPos, rootMoves, multiPV);
+      }
+
       if (rootMoves[0].pv[0] != lastBestMove) {
          lastBestMove = rootMoves[0].pv[0];
          lastBestMoveDepth = rootDepth;
@@ -445,6 +661,14 @@ void Thread::search() {
       if (!mainThread)
           continue;
 
+      if (Options["Hash Stats"])
+      {
+          sync_cout << "info string " << TT.stats_info() << sync_endl;
+
+          if (deferMoves)
+              sync_cout << "info string deferred moves " << Threads.deferrals() << sync_endl;
+      }
+
       // If skill level is enabled and time is up, pick a sub-optimal best move
       if (skill.enabled() && skill.time_to_pick(rootDepth))
           skill.pick_best(multiPV);
@@ -499,6 +723,9 @@ void Thread::search() {
       iterIdx = (iterIdx + 1) & 3;
   }
 
+  // Pass the entries of this thread not yet sent to the other processes
+  Cluster::flush_shared();
+
   if (!mainThread)
       return;
 
@@ -543,9 +770,8 @@ namespace {
     assert(0 < depth && depth < MAX_PLY);
     assert(!(PvNode && cutNode));
 
-    Move pv[MAX_PLY+1], capturesSearched[32], quietsSearched[64];
+    Move pv[MAX_PLY+1], capturesSearched[32], quietsSearched[64], deferredMoves[32];
     StateInfo st;
-    ASSERT_ALIGNED(&st, Eval::NNUE::CacheLineSize);
 
     TTEntry* tte;
     Key posKey;
@@ -556,7 +782,7 @@ namespace {
     bool captureOrPromotion, doFullDepthSearch, moveCountPruning,
          ttCapture, singularQuietLMR;
     Piece movedPiece;
-    int moveCount, captureCount, quietCount;
+    int moveCount, captureCount, quietCount, deferredCount, deferredIdx;
 
     // Step 1. Initialize node
     Thread* thisThread = pos.this_thread();
@@ -621,6 +847,15 @@ namespace {
     ttValue = ss->ttHit ? value_from_tt(tte->value(), ss->ply, pos.rule50_count()) : VALUE_NONE;
     ttMove =  rootNode ? thisThread->rootMoves[thisThread->pvIdx].pv[0]
             : ss->ttHit    ? tte->move() : MOVE_NONE;
+
+    // At PV nodes, fall back to the PV table if the TT entry has been overwritten
+    if (PvNode && !ttMove)
+    {
+        Move pvMove = PVT.probe(posKey);
+        if (pvMove && pos.pseudo_legal(pvMove))
+            ttMove = pvMove;
+    }
+
     if (!excludedMove)
         ss->ttPv = PvNode || (ss->ttHit && tte->is_pv());
 
@@ -951,9 +1186,13 @@ moves_loop: // When in check, search starts from here
                          && (tte->bound() & BOUND_UPPER)
                          && tte->depth() >= depth;
 
+    const bool deferring = deferMoves && !rootNode && depth >= DeferMinDepth;
+    deferredCount = deferredIdx = 0;
+
     // Step 12. Loop through all pseudo-legal moves until no moves remain
-    // or a beta cutoff occurs.
-    while ((move = mp.next_move(moveCountPruning)) != MOVE_NONE)
+    // or a beta cutoff occurs, then through the deferred moves.
+    while (   (move = mp.next_move(moveCountPruning)) != MOVE_NONE
+           || (deferredIdx < deferredCount && (move = deferredMoves[deferredIdx++])))
     {
       assert(is_ok(move));
 
@@ -972,6 +1211,27 @@ moves_loop: // When in check, search starts from here
       if (!rootNode && !pos.legal(move))
           continue;
 
+      // Defer the move if another thread is searching its position at this
+      // depth. The deferred quiet moves are skipped as by the move picker.
+      Key nextKey = 0;
+      if (deferring)
+      {
+          nextKey = pos.key_after(move);
+
+          if (   !deferredIdx
+              && moveCount
+              && deferredCount < 32
+              && is_searching(nextKey, depth))
+          {
+              deferredMoves[deferredCount++] = move;
+              ++thisThread->deferrals;
+              continue;
+          }
+
+          if (deferredIdx && moveCountPruning && !pos.capture_or_promotion(move))
+              continue;
+      }
+
       ss->moveCount = ++moveCount;
 
       if (rootNode && thisThread == Threads.main() && Time.elapsed() > 3000)
@@ -1114,6 +1374,7 @@ moves_loop: // When in check, search starts from here
                                                                 [to_sq(move)];
 
       // Step 15. Make the move
+      SearchingMarker marker(deferring, nextKey, depth);
       pos.do_move(move, st, givesCheck);
 
       // Step 16. Late moves reduction / extension (LMR, ~200 Elo)
@@ -1337,11 +1598,19 @@ moves_loop: // When in check, search starts from here
 
     // Write gathered information in transposition table
     if (!excludedMove && !(rootNode && thisThread->pvIdx))
-        tte->save(posKey, value_to_tt(bestValue, ss->ply), ss->ttPv,
-                  bestValue >= beta ? BOUND_LOWER :
-                  PvNode && bestMove ? BOUND_EXACT : BOUND_UPPER,
+    {
+        Bound b = bestValue >= beta ? BOUND_LOWER :
+                  PvNode && bestMove ? BOUND_EXACT : BOUND_UPPER;
+
+        tte->save(posKey, value_to_tt(bestValue, ss->ply), ss->ttPv, b,
                   depth, bestMove, ss->staticEval);
 
+        // Share the deep entries with the other processes of a cluster
+        if (depth >= Cluster::ShareMinDepth && Cluster::active())
+            Cluster::share(posKey, value_to_tt(bestValue, ss->ply), ss->ttPv, b,
+                           depth, bestMove, ss->staticEval);
+    }
+
     assert(bestValue > -VALUE_INFINITE && bestValue < VALUE_INFINITE);
 
     return bestValue;
@@ -1362,7 +1631,6 @@ moves_loop: // When in check, search starts from here
 
     Move pv[MAX_PLY+1];
     StateInfo st;
-    ASSERT_ALIGNED(&st, Eval::NNUE::CacheLineSize);
 
     TTEntry* tte;
     Key posKey;
@@ -1396,9 +1664,10 @@ moves_loop: // When in check, search starts from here
     // only two types of depth in TT: DEPTH_QS_CHECKS or DEPTH_QS_NO_CHECKS.
     ttDepth = ss->inCheck || depth >= DEPTH_QS_CHECKS ? DEPTH_QS_CHECKS
                                                   : DEPTH_QS_NO_CHECKS;
-    // Transposition table lookup
+    // Transposition table lookup, in the thread table first if enabled
     posKey = pos.key();
-    tte = TT.probe(posKey, ss->ttHit);
+    tte = thisThread->localTT.enabled() ? thisThread->localTT.probe(posKey, ss->ttHit)
+                                        : TT.probe(posKey, ss->ttHit);
     ttValue = ss->ttHit ? value_from_tt(tte->value(), ss->ply, pos.rule50_count()) : VALUE_NONE;
     ttMove = ss->ttHit ? tte->move() : MOVE_NONE;
     pvHit = ss->ttHit && tte->is_pv();
@@ -1632,6 +1901,71 @@ moves_loop: // When in check, search starts from here
   }
 
 
+  // update_pv_table() saves the moves and scores along the principal variations
+  // of the first multiPV root moves to the PV table. The best line is saved
+  // last, so that it wins where the lines share a position. The lines are walked
+  // on a copy of the root position, on the scratch thread, as this is not search
+  // work.
+
+  void update_pv_table(const Position& root, const RootMoves& rootMoves, size_t multiPV) {
+
+    for (size_t i = multiPV; i-- > 0; )
+    {
+        std::deque<StateInfo> states(1);
+        Position pos;
+        pos.set(root.fen(), root.is_chess960(), &states.back(), Threads.scratch());
+
+        const std::vector<Move>& pv = rootMoves[i].pv;
+        Value v = rootMoves[i].score;
+
+        for (int ply = 0; ply < int(pv.size()) && pv[ply] != MOVE_NONE; ++ply, v = -v)
+        {
+            PVT.store(pos.key(), pv[ply], value_to_tt(v, ply));
+            states.emplace_back();
+            pos.do_move(pv[ply], states.back());
+        }
+    }
+  }
+
+
+  // pv_tail() returns the moves of the PV table following the given principal
+  // variation, as long as they are legal and do not lead to a draw. Like
+  // update_pv_table(), it walks the line on a copy of the root position.
+
+  std::vector<Move> pv_tail(const Position& root, const std::vector<Move>& pv) {
+
+    std::vector<Move> line;
+    Move pvMove;
+
+    if (pv.empty() || pv[0] == MOVE_NONE)
+        return line;
+
+    std::deque<StateInfo> states(1);
+    Position pos;
+    pos.set(root.fen(), root.is_chess960(), &states.back(), Threads.scratch());
+
+    for (Move m : pv)
+    {
+        states.emplace_back();
+        pos.do_move(m, states.back());
+    }
+
+    line = pv;
+
+    while (   line.size() < MAX_PLY
+           && !pos.is_draw(int(line.size()))
+           && (pvMove = PVT.probe(pos.key())) != MOVE_NONE
+           && MoveList<LEGAL>(pos).contains(pvMove))
+    {
+        line.push_back(pvMove);
+        states.emplace_back();
+        pos.do_move(pvMove, states.back());
+    }
+
+    return std::vector<Move>(line.begin() + pv.size(), line.end());
+  }
+
+
   // update_all_stats() updates stats at the end of search() when a bestMove is found
 
   void update_all_stats(const Position& pos, Stack* ss, Move bestMove, Value bestValue, Value beta, Square prevSq,
@@ -1761,6 +2095,72 @@ moves_loop: // When in check, search starts from here
     return best;
   }
 
+  // pv_info() formats the given lines as UCI::pv() does, for the lines of a
+  // search thread or the line of another process of a cluster. The lines with
+  // a nonzero depth in lineDepths, merged from other groups of threads, are
+  // reported at that depth instead of the given one.
+
+  string pv_info(const Position& pos, const RootMoves& rootMoves, size_t pvIdx, Depth depth, Value alpha, Value beta,
+                 const std::vector<Depth>& lineDepths) {
+
+    std::stringstream ss;
+    TimePoint elapsed = Time.elapsed() + 1;
+    size_t multiPV = std::min((size_t)Options["MultiPV"], rootMoves.size());
+    uint64_t nodesSearched = Cluster::nodes_searched();
+    uint64_t tbHits = Cluster::tb_hits() + (TB::RootInTB ? rootMoves.size() : 0);
+
+    for (size_t i = 0; i < multiPV; ++i)
+    {
+        bool updated = rootMoves[i].score != -VALUE_INFINITE;
+
+        if (depth == 1 && !updated && i > 0)
+            continue;
+
+        Depth lineDepth = i < lineDepths.size() && lineDepths[i] ? lineDepths[i] : depth;
+        Depth d = updated ? lineDepth : std::max(1, lineDepth - 1);
+        Value v = updated ? rootMoves[i].score : rootMoves[i].previousScore;
+
+        if (v == -VALUE_INFINITE)
+            v = VALUE_ZERO;
+
+        bool tb = TB::RootInTB && abs(v) < VALUE_MATE_IN_MAX_PLY;
+        v = tb ? rootMoves[i].tbScore : v;
+
+        if (ss.rdbuf()->in_avail()) // Not at first line
+            ss << "\n";
+
+        ss << "info"
+           << " depth "    << d
+           << " seldepth " << rootMoves[i].selDepth
+           << " multipv "  << i + 1
+           << " score "    << UCI::value(v);
+
+        if (Options["UCI_ShowWDL"])
+            ss << UCI::wdl(v, pos.game_ply());
+
+        if (!tb && i == pvIdx)
+            ss << (v >= beta ? " lowerbound" : v <= alpha ? " upperbound" : "");
+
+        ss << " nodes "    << nodesSearched
+           << " nps "      << nodesSearched * 1000 / elapsed;
+
+        if (elapsed > 1000) // Earlier makes little sense
+            ss << " hashfull " << TT.hashfull();
+
+        ss << " tbhits "   << tbHits
+           << " time "     << elapsed
+           << " pv";
+
+        for (Move m : rootMoves[i].pv)
+            ss << " " << UCI::move(m, pos.is_chess960());
+
+        for (Move m : pv_tail(pos, rootMoves[i].pv))
+            ss << " " << UCI::move(m, pos.is_chess960());
+    }
+
+    return ss.str();
+  }
+
 } // namespace
 
 
@@ -1775,6 +2175,10 @@ void MainThread::check_time() {
   // When using nodes, ensure checking rate is not lower than 0.1% of nodes
   callsCnt = Limits.nodes ? std::min(1024, int(Limits.nodes / 1024)) : 1024;
 
+  // Store the entries received from the other processes of a cluster
+  if (Cluster::active())
+      Cluster::store_received();
+
   static TimePoint lastInfoTime = now();
 
   TimePoint elapsed = Time.elapsed();
@@ -1799,75 +2203,23 @@ void MainThread::check_time() {
 
 /// UCI::pv() formats PV information according to the UCI protocol. UCI requires
 /// that all (if any) unsearched PV lines are sent using a previous search score.
+/// The lines are extended with the moves of the PV table past their end.
 
 string UCI::pv(const Position& pos, Depth depth, Value alpha, Value beta) {
 
-  std::stringstream ss;
-  TimePoint elapsed = Time.elapsed() + 1;
-  const RootMoves& rootMoves = pos.this_thread()->rootMoves;
-  size_t pvIdx = pos.this_thread()->pvIdx;
-  size_t multiPV = std::min((size_t)Options["MultiPV"], rootMoves.size());
-  uint64_t nodesSearched = Threads.nodes_searched();
-  uint64_t tbHits = Threads.tb_hits() + (TB::RootInTB ? rootMoves.size() : 0);
-
-  for (size_t i = 0; i < multiPV; ++i)
-  {
-      bool updated = rootMoves[i].score != -VALUE_INFINITE;
-
-      if (depth == 1 && !updated && i > 0)
-          continue;
-
-      Depth d = updated ? depth : std::max(1, depth - 1);
-      Value v = updated ? rootMoves[i].score : rootMoves[i].previousScore;
-
-      if (v == -VALUE_INFINITE)
-          v = VALUE_ZERO;
-
-      bool tb = TB::RootInTB && abs(v) < VALUE_MATE_IN_MAX_PLY;
-      v = tb ? rootMoves[i].tbScore : v;
-
-      if (ss.rdbuf()->in_avail()) // Not at first line
-          ss << "\n";
-
-      ss << "info"
-         << " depth "    << d
-         << " seldepth " << rootMoves[i].selDepth
-         << " multipv "  << i + 1
-         << " score "    << UCI::value(v);
-
-      if (Options["UCI_ShowWDL"])
-          ss << UCI::wdl(v, pos.game_ply());
-
-      if (!tb && i == pvIdx)
-          ss << (v >= beta ? " lowerbound" : v <= alpha ? " upperbound" : "");
-
-      ss << " nodes "    << nodesSearched
-         << " nps "      << nodesSearched * 1000 / elapsed;
-
-      if (elapsed > 1000) // Earlier makes little sense
-          ss << " hashfull " << TT.hashfull();
-
-      ss << " tbhits "   << tbHits
-         << " time "     << elapsed
-         << " pv";
-
-      for (Move m : rootMoves[i].pv)
-          ss << " " << UCI::move(m, pos.is_chess960());
-  }
-
-  return ss.str();
+  return pv_info(pos, pos.this_thread()->rootMoves, pos.this_thread()->pvIdx, depth, alpha, beta);
 }
 
 
 /// RootMove::extract_ponder_from_tt() is called in case we have no ponder move
 /// before exiting the search, for instance, in case we stop the search during a
 /// fail high at root. We try hard to have a ponder move to return to the GUI,
-/// otherwise in case of 'ponder on' we have nothing to think on.
+/// otherwise in case of 'ponder on' we have nothing to think on. The PV table
+/// is looked up first, as its entries are not overwritten by the search.
 
 bool RootMove::extract_ponder_from_tt(Position& pos) {
 
     StateInfo st;
-    ASSERT_ALIGNED(&st, Eval::NNUE::CacheLineSize);
 
     bool ttHit;
 
@@ -1877,13 +2229,20 @@ bool RootMove::extract_ponder_from_tt(Position& pos) {
         return false;
 
     pos.do_move(pv[0], st);
-    TTEntry* tte = TT.probe(pos.key(), ttHit);
 
-    if (ttHit)
+    Move pvMove = PVT.probe(pos.key());
+    if (pvMove && MoveList<LEGAL>(pos).contains(pvMove))
+        pv.push_back(pvMove);
+    else
     {
-        Move m = tte->move(); // Local copy to be SMP safe
-        if (MoveList<LEGAL>(pos).contains(m))
-            pv.push_back(m);
+        TTEntry* tte = TT.probe(pos.key(), ttHit);
+
+        if (ttHit)
+        {
+            Move m = tte->move(); // Local copy to be SMP safe
+            if (MoveList<LEGAL>(pos).contains(m))
+                pv.push_back(m);
+        }
     }
 
     pos.undo_move(pv[0]);
@@ -57,6 +57,8 @@ Thread::~Thread() {
 
 void Thread::clear() {
 
+  ttStats.clear();
+  localTT.resize(size_t(Options["Thread Hash"]));
   counterMoves.fill(MOVE_NONE);
   mainHistory.fill(0);
   lowPlyHistory.fill(0);
@@ -83,6 +85,21 @@ void Thread::start_searching() {
 }
 
 
+/// Thread::run_custom_job() wakes up the thread that will run the given function
+/// instead of a search. Use wait_for_search_finished() to wait for its completion.
+
+void Thread::run_custom_job(std::function<void()> f) {
+
+  {
+      std::unique_lock<std::mutex> lk(mutex);
+      cv.wait(lk, [&]{ return !searching; });
+      jobFunc = std::move(f);
+      searching = true;
+  }
+  cv.notify_one(); // Wake up the thread in idle_loop()
+}
+
+
 /// Thread::wait_for_search_finished() blocks on the condition variable
 /// until the thread has finished searching.
 
@@ -106,19 +123,40 @@ void Thread::idle_loop() {
   if (Options["Threads"] > 8)
       WinProcGroup::bindThisThread(idx);
 
+  TranspositionTable::threadStats = &ttStats;
+
   while (true)
   {
       std::unique_lock<std::mutex> lk(mutex);
       searching = false;
       cv.notify_one(); // Wake up anyone waiting for search finished
+
+      // While parked, zero the hash table left by TT.clear_async(), one chunk
+      // at a time so that a new search is not delayed.
+      while (!searching)
+      {
+          lk.unlock();
+          const bool more = TT.clear_chunk();
+          lk.lock();
+
+          if (!more)
+              break;
+      }
+
       cv.wait(lk, [&]{ return searching; });
 
       if (exit)
           return;
 
+      std::function<void()> job = std::move(jobFunc);
+      jobFunc = nullptr;
+
       lk.unlock();
 
-      search();
+      if (job)
+          job();
+      else
+          search();
   }
 }
 
@@ -134,6 +172,8 @@ void ThreadPool::set(size_t requested) {
 
       while (size() > 0)
           delete back(), pop_back();
+
+      scratchThread.reset();
   }
 
   if (requested > 0)   // create new thread(s)
@@ -144,6 +184,9 @@ void ThreadPool::set(size_t requested) {
           push_back(new Thread(size()));
       clear();
 
+      scratchThread.reset(new Thread(size()));
+      scratchThread->clear();
+
       // Reallocate the hash with the new threadpool size
       TT.resize(size_t(Options["Hash"]));
 
@@ -157,8 +200,13 @@ void ThreadPool::set(size_t requested) {
 
 void ThreadPool::clear() {
 
+  // Each thread resets its own data, so that on NUMA systems its memory is
+  // first touched from the node the thread is bound to.
+  for (Thread* th : *this)
+      th->run_custom_job([th]() { th->clear(); });
+
   for (Thread* th : *this)
-      th->clear();
+      th->wait_for_search_finished();
 
   main()->callsCnt = 0;
   main()->bestPreviousScore = VALUE_INFINITE;
@@ -202,7 +250,7 @@ void ThreadPool::start_thinking(Position& pos, StateListPtr& states,
   // since they are read-only.
   for (Thread* th : *this)
   {
-      th->nodes = th->tbHits = th->nmpMinPly = th->bestMoveChanges = 0;
+      th->nodes = th->tbHits = th->nmpMinPly = th->bestMoveChanges = th->deferrals = 0;
       th->rootDepth = th->completedDepth = 0;
       th->rootMoves = rootMoves;
       th->rootPos.set(pos.fen(), pos.is_chess960(), &th->rootState, th);
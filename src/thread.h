@@ -21,6 +21,8 @@
 
 #include <atomic>
 #include <condition_variable>
+#include <functional>
+#include <memory>
 #include <mutex>
 #include <thread>
 #include <vector>
@@ -31,6 +33,7 @@
 #include "position.h"
 #include "search.h"
 #include "thread_win32_osx.h"
+#include "tt.h"
 
 namespace Stockfish {
 
@@ -45,6 +48,7 @@ class Thread {
   std::condition_variable cv;
   size_t idx;
   bool exit = false, searching = true; // Set before starting std::thread
+  std::function<void()> jobFunc;
   NativeThread stdThread;
 
 public:
@@ -54,16 +58,21 @@ public:
   void clear();
   void idle_loop();
   void start_searching();
+  void run_custom_job(std::function<void()> f);
   void wait_for_search_finished();
   size_t id() const { return idx; }
 
   Pawns::Table pawnsTable;
   Material::Table materialTable;
+  TTStats ttStats;
+  LocalTT localTT;
+  Eval::NNUE::AccumulatorStack accumulatorStack;
+  Eval::NNUE::AccumulatorCache accumulatorCache[Eval::NNUE::NetCount];
   size_t pvIdx, pvLast;
   uint64_t ttHitAverage;
   int selDepth, nmpMinPly;
   Color nmpColor;
-  std::atomic<uint64_t> nodes, tbHits, bestMoveChanges;
+  std::atomic<uint64_t> nodes, tbHits, bestMoveChanges, deferrals;
 
   Position rootPos;
   StateInfo rootState;
@@ -107,8 +116,10 @@ struct ThreadPool : public std::vector<Thread*> {
   void set(size_t);
 
   MainThread* main()        const { return static_cast<MainThread*>(front()); }
+  Thread* scratch()         const { return scratchThread.get(); }
   uint64_t nodes_searched() const { return accumulate(&Thread::nodes); }
   uint64_t tb_hits()        const { return accumulate(&Thread::tbHits); }
+  uint64_t deferrals()      const { return accumulate(&Thread::deferrals); }
   Thread* get_best_thread() const;
   void start_searching();
   void wait_for_search_finished() const;
@@ -118,6 +129,11 @@ struct ThreadPool : public std::vector<Thread*> {
 private:
   StateListPtr setupStates;
 
+  // Thread of the positions set up apart from the search, like those walking
+  // the lines of the PV table, so that they neither count as searched nodes nor
+  // touch the data of the search threads. It never searches.
+  std::unique_ptr<Thread> scratchThread;
+
   uint64_t accumulate(std::atomic<uint64_t> Thread::* member) const {
 
     uint64_t sum = 0;
@@ -16,8 +16,13 @@
   along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+#include <algorithm>
+#include <atomic>
+#include <chrono>
 #include <cstring>   // For std::memset
+#include <iomanip>
 #include <iostream>
+#include <sstream>
 #include <thread>
 
 #include "bitboard.h"
@@ -26,49 +31,398 @@
 #include "tt.h"
 #include "uci.h"
 
+#ifndef _WIN32
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/file.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#else
+#ifndef NOMINMAX
+#define NOMINMAX
+#endif
+#include <windows.h>
+#endif
+
 namespace Stockfish {
 
 TranspositionTable TT; // Our global transposition table
+PVTable PVT; // Our global principal variation table
+
+thread_local TTStats* TranspositionTable::threadStats = nullptr;
+
+/// Header of a shared memory segment holding a transposition table. It keeps
+/// the generation common to all the attached processes and, like the header
+/// of the hash files, is padded to a full cache line.
+
+struct TranspositionTable::SharedHeader {
+  char                 magic[8];
+  uint64_t             clusterCount;
+  uint32_t             clusterSize;
+  std::atomic<uint8_t> generation8;
+  char                 padding[43];
+};
+
+namespace {
+
+  // Header of the file written by TranspositionTable::save(). It is padded to
+  // a full cache line, so that the clusters stored after it stay aligned.
+  struct HashFileHeader {
+    char     magic[8];
+    uint64_t clusterCount;
+    uint32_t clusterSize;
+    uint8_t  generation8;
+    char     padding[43];
+  };
+
+  static_assert(sizeof(HashFileHeader) == 64, "Unexpected HashFileHeader size");
+
+  constexpr char HashFileMagic[8] = { 'S', 'F', 'H', 'A', 'S', 'H', '0', '1' };
+  constexpr char SharedMagic[8]   = { 'S', 'F', 'S', 'H', 'M', 'T', 'T', '1' };
+
+
+#if !defined(_WIN32) && !defined(__ANDROID__)
+  // shm_name() returns the name of a POSIX shared memory object, which must
+  // start with a slash
+  std::string shm_name(const std::string& name) {
+    return name[0] == '/' ? name : "/" + name;
+  }
+#endif
+
+  // map_shared() maps the named shared memory segment of the given size, creating
+  // it if it does not exist yet. Returns nullptr if the segment cannot be created
+  // or exists with a different size. On POSIX systems the descriptor of the
+  // segment is kept in fd, with a shared lock telling the other processes that
+  // this one uses the segment, see unmap_shared(). The creator of a segment
+  // locks it exclusively instead, until share_segment() once it has written
+  // the header, and the other processes wait for that.
+
+  void* map_shared(const std::string& name, size_t size, bool& created, int& fd) {
+
+    fd = -1;
+
+#if defined(_WIN32)
+    HANDLE mmap = CreateFileMapping(INVALID_HANDLE_VALUE, nullptr, PAGE_READWRITE,
+                                    DWORD(uint64_t(size) >> 32), DWORD(size), name.c_str());
+    if (!mmap)
+        return nullptr;
+
+    created = GetLastError() != ERROR_ALREADY_EXISTS;
+
+    // The view keeps a reference to the mapping object, so we can close it now
+    void* mem = MapViewOfFile(mmap, FILE_MAP_ALL_ACCESS, 0, 0, size);
+    CloseHandle(mmap);
+
+    return mem;
+#elif defined(__ANDROID__)
+    (void)name, (void)size, (void)created;
+    return nullptr;
+#else
+    const std::string shmName = shm_name(name);
+
+    fd = shm_open(shmName.c_str(), O_RDWR | O_CREAT | O_EXCL, 0600);
+    created = fd != -1;
+
+    if (!created)
+        fd = shm_open(shmName.c_str(), O_RDWR, 0);
+
+    if (fd == -1)
+        return nullptr;
+
+    bool ready = false;
+
+    if (created)
+        ready = flock(fd, LOCK_EX) == 0 && ftruncate(fd, off_t(size)) == 0;
+    else
+        // A joiner may get the lock between the shm_open() and the flock() of
+        // the creator, and then finds the segment still empty: let the creator
+        // lock it and retry.
+        for (int tries = 0; tries < 100; ++tries)
+        {
+            struct stat statbuf;
+            if (flock(fd, LOCK_SH) == -1 || fstat(fd, &statbuf) == -1)
+                break;
+
+            if (statbuf.st_size)
+            {
+                ready = size_t(statbuf.st_size) == size;
+                break;
+            }
+
+            flock(fd, LOCK_UN);
+            std::this_thread::sleep_for(std::chrono::milliseconds(10));
+        }
+
+    if (!ready)
+    {
+        ::close(fd);
+        fd = -1;
+        if (created)
+            shm_unlink(shmName.c_str());
+        return nullptr;
+    }
+
+    void* mem = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+
+    if (mem == MAP_FAILED)
+    {
+        ::close(fd);
+        fd = -1;
+        return nullptr;
+    }
+
+#if defined(MADV_HUGEPAGE)
+    madvise(mem, size, MADV_HUGEPAGE);
+#endif
+    return mem;
+#endif
+  }
+
+
+  // share_segment() lets the other processes map a segment created by
+  // map_shared(), once its header is written.
+
+  void share_segment(int fd) {
+
+#if !defined(_WIN32) && !defined(__ANDROID__)
+    flock(fd, LOCK_SH);
+#else
+    (void)fd;
+#endif
+  }
+
+
+  // has_shared_magic() checks the magic of the header of a shared segment. On
+  // Windows, where the segments are not locked, the creator of the segment is
+  // given some time to write it.
+
+  bool has_shared_magic(const char* magic) {
+
+#if defined(_WIN32)
+    for (int tries = 0; tries < 100 && std::memcmp(magic, SharedMagic, sizeof(SharedMagic)); ++tries)
+        std::this_thread::sleep_for(std::chrono::milliseconds(10));
+#endif
+
+    return !std::memcmp(magic, SharedMagic, sizeof(SharedMagic));
+  }
+
+
+  // unmap_shared() unmaps a segment mapped by map_shared(). The last process
+  // using a POSIX segment, the only one able to lock it exclusively, removes it.
+  // The locks of the processes that exit without unmapping it are released by
+  // the system, so the segment is removed with the last one alive.
+
+  void unmap_shared(void* mem, size_t size, const std::string& name, int fd) {
+
+    unmap_file(mem, size);
+
+#if !defined(_WIN32) && !defined(__ANDROID__)
+    if (flock(fd, LOCK_EX | LOCK_NB) == 0)
+        shm_unlink(shm_name(name).c_str());
+
+    ::close(fd);
+#else
+    (void)name, (void)fd;
+#endif
+  }
+
+  // for_each_chunk() splits the range [0, count) of items of ItemSize bytes in
+  // one contiguous chunk per search thread and calls f(start, len) for all the
+  // chunks in parallel. When the threads are bound to several NUMA nodes, the
+  // range is instead interleaved across the nodes in stripes of 2MB, each stripe
+  // being shared by the threads of one node. As a table is first touched this
+  // way, its pages are spread deterministically over the nodes, and later calls
+  // find their stripes on the local node.
+
+  template<size_t ItemSize, typename F>
+  void for_each_chunk(size_t count, const F& f) {
+
+    std::vector<std::thread> threads;
+    const size_t threadCount = size_t(Options["Threads"]);
+
+    // Nodes of the threads, as bound by WinProcGroup::bindThisThread()
+    std::vector<int> nodes(threadCount, -1), activeNodes;
+
+    if (threadCount > 8)
+        for (size_t idx = 0; idx < threadCount; ++idx)
+            if ((nodes[idx] = WinProcGroup::best_group(idx)) != -1
+                && std::find(activeNodes.begin(), activeNodes.end(), nodes[idx]) == activeNodes.end())
+                activeNodes.push_back(nodes[idx]);
+
+    for (size_t idx = 0; idx < threadCount; ++idx)
+    {
+        threads.emplace_back([&f, &nodes, &activeNodes, count, threadCount, idx]() {
+
+            // Thread binding gives faster search on systems with a first-touch policy
+            if (threadCount > 8)
+                WinProcGroup::bindThisThread(idx);
+
+            if (activeNodes.size() < 2)
+            {
+                const size_t stride = count / threadCount,
+                             start  = stride * idx,
+                             len    = idx != threadCount - 1 ?
+                                      stride : count - start;
+
+                f(start, len);
+                return;
+            }
+
+            if (nodes[idx] == -1)
+                return;
+
+            // Stripe s belongs to activeNodes[s % activeNodes.size()], and the
+            // threads of that node handle its stripes in turn.
+            const size_t StripeSize = 2 * 1024 * 1024 / ItemSize;
+            const auto   node    = std::find(activeNodes.begin(), activeNodes.end(), nodes[idx]);
+            const size_t nodeIdx = node - activeNodes.begin();
+            const size_t rank    = std::count(nodes.begin(), nodes.begin() + idx, nodes[idx]);
+            const size_t peers   = std::count(nodes.begin(), nodes.end(), nodes[idx]);
+            const size_t step    = peers * activeNodes.size();
+
+            for (size_t s = nodeIdx + rank * activeNodes.size(); s * StripeSize < count; s += step)
+                f(s * StripeSize, std::min(StripeSize, count - s * StripeSize));
+        });
+    }
+
+    for (std::thread& th : threads)
+        th.join();
+  }
+
+  // cluster_range() returns the first and the last cluster of a table of 'from'
+  // clusters holding the keys that map to cluster idx of a table of 'to' clusters,
+  // as a key maps to cluster mul_hi64(key, clusterCount), i.e. key * clusterCount / 2^64.
+
+  std::pair<uint64_t, uint64_t> cluster_range(uint64_t idx, uint64_t to, uint64_t from) {
+
+#if defined(__GNUC__) && defined(IS_64BIT)
+    __extension__ typedef unsigned __int128 uint128;
+    return { uint64_t((uint128)idx * from / to),
+             uint64_t((((uint128)idx + 1) * from - 1) / to) };
+#else
+    if (to >> 32 == 0 && from >> 32 == 0)
+        return { idx * from / to, ((idx + 1) * from - 1) / to };
+
+    // Rounding errors can only misplace a few entries of a huge table
+    uint64_t first = std::min(uint64_t((long double)idx * from / to), from - 1);
+    uint64_t last  = std::min(uint64_t(((long double)idx + 1) * from / to), from - 1);
+    return { first, std::max(first, last) };
+#endif
+  }
+
+} // namespace
 
 /// TTEntry::save() populates the TTEntry with a new node's data, possibly
 /// overwriting an old position. Update is not atomic and can be racy.
 
 void TTEntry::save(Key k, Value v, bool pv, Bound b, Depth d, Move m, Value ev) {
 
+#if defined(TT_CHECK)
+  // Update a copy and write it back at once, so that the key is checked
+  // against our own data and not against the data of concurrent writes.
+  TTEntry copy = *this;
+  TTEntry& tte = copy;
+#else
+  TTEntry& tte = *this;
+#endif
+
+  const TTKey oldKey = tte.key();
+
+  // Count the fills of empty entries and the replacements of other positions,
+  // and sample the full key
+  if (TT.collectStats)
+      TT.count_store(this, tte, k);
+
   // Preserve any existing move for the same position
-  if (m || (uint16_t)k != key16)
-      move16 = (uint16_t)m;
+  if (m || (TTKey)k != oldKey)
+      tte.move16 = (uint16_t)m;
 
   // Overwrite less valuable entries (cheapest checks first)
   if (b == BOUND_EXACT
-      || (uint16_t)k != key16
-      || d - DEPTH_OFFSET > depth8 - 4)
+      || (TTKey)k != oldKey
+      || d - DEPTH_OFFSET > tte.depth8 - 4)
   {
       assert(d > DEPTH_OFFSET);
       assert(d < 256 + DEPTH_OFFSET);
 
-      key16     = (uint16_t)k;
-      depth8    = (uint8_t)(d - DEPTH_OFFSET);
-      genBound8 = (uint8_t)(TT.generation8 | uint8_t(pv) << 2 | b);
-      value16   = (int16_t)v;
-      eval16    = (int16_t)ev;
+      tte.keyBits   = (TTKey)k;
+      tte.depth8    = (uint8_t)(d - DEPTH_OFFSET);
+      tte.genBound8 = (uint8_t)(TT.generation8 | uint8_t(pv) << 2 | b);
+      tte.value16   = (int16_t)v;
+      tte.eval16    = (int16_t)ev;
   }
+
+#if defined(TT_CHECK)
+  // The key depends on all the other fields, so it is set last
+  tte.set_key((TTKey)k);
+  *this = copy;
+#endif
 }
 
 
 /// TranspositionTable::resize() sets the size of the transposition table,
 /// measured in megabytes. Transposition table consists of a power of 2 number
 /// of clusters and each cluster consists of ClusterSize number of TTEntry.
+/// When the Hash Shared Name option is set, the table is attached to the named
+/// shared memory segment instead, so that several processes can use it. The
+/// entries of a private table are migrated to the resized one.
 
 void TranspositionTable::resize(size_t mbSize) {
 
   Threads.main()->wait_for_search_finished();
+  wait_for_clear();
+
+  const size_t newClusterCount = mbSize * 1024 * 1024 / sizeof(Cluster);
+
+  std::string sharedName = Options["Hash Shared Name"];
+  const bool toShared = !sharedName.empty() && sharedName != "<empty>";
+
+  // Keep the table if neither its size nor its segment change, as when only
+  // the number of threads does
+  if (   table
+      && newClusterCount == clusterCount
+      && (toShared ? sharedHeader && sharedName == segmentName : !sharedHeader))
+      return;
+
+  if (toShared)
+  {
+      release();
+      clusterCount = newClusterCount;
 
-  aligned_large_pages_free(table);
+      if (attach_shared(sharedName))
+          return;
 
-  clusterCount = mbSize * 1024 * 1024 / sizeof(Cluster);
+      sync_cout << "info string Could not attach to shared hash " << sharedName
+                << ", using a private hash" << sync_endl;
+  }
+
+  // A shared table is left to the other processes, its entries are not migrated
+  if (sharedHeader)
+      release();
+
+  Cluster* oldTable = table;
+  const size_t oldClusterCount = clusterCount;
+
+  // Migrating the entries needs both tables. If the new one does not fit in
+  // the available memory, give up the old entries before allocating it: with
+  // overcommit, the allocation would not fail but the process be killed when
+  // the migration touches the memory.
+  if (oldTable && newClusterCount * sizeof(Cluster) > available_memory())
+  {
+      aligned_large_pages_free(oldTable);
+      oldTable = nullptr;
+  }
+
+  table = static_cast<Cluster*>(aligned_large_pages_alloc(newClusterCount * sizeof(Cluster)));
+
+  // If the allocation of both tables fails, give up the old entries as well
+  if (!table && oldTable)
+  {
+      aligned_large_pages_free(oldTable);
+      oldTable = nullptr;
+      table = static_cast<Cluster*>(aligned_large_pages_alloc(newClusterCount * sizeof(Cluster)));
+  }
 
-  table = static_cast<Cluster*>(aligned_large_pages_alloc(clusterCount * sizeof(Cluster)));
   if (!table)
   {
       std::cerr << "Failed to allocate " << mbSize
@@ -76,7 +430,176 @@ void TranspositionTable::resize(size_t mbSize) {
       exit(EXIT_FAILURE);
   }
 
-  clear();
+  clusterCount = newClusterCount;
+  clearedClusters.reset();
+
+  const size_t sampleSize = (clusterCount + SampleRate - 1) / SampleRate * ClusterSize;
+  sampledKeys.assign(collectStats ? sampleSize : 0, 0);
+
+  if (oldTable)
+  {
+      migrate(oldTable, oldClusterCount);
+      aligned_large_pages_free(oldTable);
+  }
+  else
+      clear();
+}
+
+
+/// TranspositionTable::migrate() fills the table with the entries of a table
+/// of a different size. As entries keep only the low 16 bits of their key, the
+/// new cluster of an entry is known only up to the range of new clusters that
+/// cover the keys of its old cluster. So each new cluster collects the entries
+/// of all the old clusters that may map to it and keeps the most valuable ones,
+/// as per the replacement strategy of probe(). When the table shrinks this is
+/// exact; when it grows, entries are copied in all their candidate clusters
+/// and the useless copies are aged out by later searches.
+
+void TranspositionTable::migrate(const Cluster* oldTable, size_t oldClusterCount) {
+
+  auto replaceValue = [this](const TTEntry& tte) {
+      return tte.depth8 - ((GENERATION_CYCLE + generation8 - tte.genBound8) & GENERATION_MASK);
+  };
+
+  // Each thread will fill its part of the hash table
+  for_each_chunk<sizeof(Cluster)>(clusterCount, [&](size_t start, size_t len) {
+
+      for (size_t idx = start; idx < start + len; ++idx)
+      {
+          TTEntry* const tte = table[idx].entry;
+          std::memset(&table[idx], 0, sizeof(Cluster));
+
+          auto [first, last] = cluster_range(idx, clusterCount, oldClusterCount);
+
+          for (uint64_t i = first; i <= last; ++i)
+              for (const TTEntry& candidate : oldTable[i].entry)
+              {
+                  if (!candidate.depth8)
+                      continue;
+
+                  // Replace an empty or the least valuable entry kept so far
+                  TTEntry* replace = tte;
+                  for (int j = 1; j < ClusterSize && replace->depth8; ++j)
+                      if (!tte[j].depth8 || replaceValue(*replace) > replaceValue(tte[j]))
+                          replace = &tte[j];
+
+                  if (!replace->depth8 || replaceValue(*replace) < replaceValue(candidate))
+                      *replace = candidate;
+              }
+      }
+  });
+}
+
+
+/// TranspositionTable::attach_shared() maps the table to the named shared memory
+/// segment, creating it if needed. A new segment is already zeroed, an existing
+/// one keeps the entries stored by the other processes. Returns false if the
+/// segment was created by a table with a different size.
+
+bool TranspositionTable::attach_shared(const std::string& name) {
+
+  static_assert(sizeof(SharedHeader) == 64, "Unexpected SharedHeader size");
+
+  size_t size = sizeof(SharedHeader) + clusterCount * sizeof(Cluster);
+  bool created;
+  int fd;
+  char* mem = static_cast<char*>(map_shared(name, size, created, fd));
+
+  if (!mem)
+      return false;
+
+  SharedHeader* header = reinterpret_cast<SharedHeader*>(mem);
+
+  if (created)
+  {
+      new (header) SharedHeader();
+      header->clusterCount = clusterCount;
+      header->clusterSize  = sizeof(Cluster);
+      std::memcpy(header->magic, SharedMagic, sizeof(SharedMagic));
+      share_segment(fd);
+  }
+  else if (   !has_shared_magic(header->magic)
+           || header->clusterCount != clusterCount
+           || header->clusterSize != sizeof(Cluster))
+  {
+      unmap_shared(mem, size, name, fd);
+      return false;
+  }
+
+  sharedHeader = header;
+  segmentName = name;
+  segmentFd = fd;
+  table = reinterpret_cast<Cluster*>(mem + sizeof(SharedHeader));
+  generation8 = sharedHeader->generation8;
+  return true;
+}
+
+
+/// TranspositionTable::release() frees the table memory, or detaches the table
+/// from its shared memory segment, which stays available to other processes
+/// and is removed by the last one.
+
+void TranspositionTable::release() {
+
+  // A clearing in progress is dropped with the table, once the parked threads
+  // are out of clear_chunk()
+  clearing = false;
+  wait_for_clear();
+  clearedClusters.reset();
+
+  if (sharedHeader)
+      unmap_shared(sharedHeader, sizeof(SharedHeader) + clusterCount * sizeof(Cluster),
+                   segmentName, segmentFd);
+  else
+      aligned_large_pages_free(table);
+
+  sharedHeader = nullptr;
+  table = nullptr;
+  sampledKeys.clear();
+}
+
+
+/// TranspositionTable::new_search() increments the generation at the start of
+/// each search. The lower bits of generation8 are used for other things. With
+/// a shared table, the generation is shared too, so that all the processes age
+/// the entries alike. It advances only if no other process did since the last
+/// search of this one, otherwise this search is taken as the one those processes
+/// already started, whose generation is adopted. So the processes searching the
+/// same game advance it once per move, however many they are.
+
+void TranspositionTable::new_search() {
+
+  if (!sharedHeader)
+  {
+      generation8 += GENERATION_DELTA;
+      return;
+  }
+
+  uint8_t current = generation8;
+  const uint8_t next = uint8_t(generation8 + GENERATION_DELTA);
+
+  if (sharedHeader->generation8.compare_exchange_strong(current, next))
+      generation8 += GENERATION_DELTA;
+  else
+      generation8 = current;
+}
+
+
+/// TranspositionTable::set_sampling() turns on or off the counting of the
+/// accesses and the sampling of the full keys of the entries of one cluster
+/// out of SampleRate, which measures the false hits at the cost of a write to
+/// the sample on each store to a sampled cluster. The keys of the entries
+/// already stored are unknown. A shared table is not sampled, as the other
+/// processes do not update the sample.
+
+void TranspositionTable::set_sampling(bool on) {
+
+  Threads.main()->wait_for_search_finished();
+
+  const size_t sampleSize = (clusterCount + SampleRate - 1) / SampleRate * ClusterSize;
+
+  collectStats = on;
+  sampledKeys.assign(on && !sharedHeader ? sampleSize : 0, 0);
 }
 
 
@@ -85,45 +608,271 @@ void TranspositionTable::resize(size_t mbSize) {
 
 void TranspositionTable::clear() {
 
-  std::vector<std::thread> threads;
+  wait_for_clear();
+
+  // Each thread will zero its part of the hash table
+  for_each_chunk<sizeof(Cluster)>(clusterCount, [this](size_t start, size_t len) {
+      std::memset(&table[start], 0, len * sizeof(Cluster));
+  });
+
+  std::fill(sampledKeys.begin(), sampledKeys.end(), 0);
+}
+
+
+/// TranspositionTable::clear_async() clears the table without zeroing it, so
+/// that a new game can start searching at once. It starts a new epoch: the
+/// clusters not touched since then hold entries of the previous game, and are
+/// treated as empty. A cluster is zeroed when it is first probed, or by the
+/// search threads while they are parked between two searches, see clear_chunk().
+/// The generation of an entry cannot tell the epochs apart, as it cycles every
+/// 32 searches, so the clusters of the new epoch are kept in a bitmap, which
+/// is allocated once for the current size of the table.
+
+void TranspositionTable::clear_async() {
+
+  wait_for_clear();
+
+  const size_t words = (clusterCount + 63) / 64;
+
+  if (!clearedClusters)
+      clearedClusters.reset(new std::atomic<uint64_t>[words]);
+
+  // Each thread will zero its part of the bitmap
+  for_each_chunk<sizeof(uint64_t)>(words, [this](size_t start, size_t len) {
+      for (size_t w = start; w < start + len; ++w)
+          clearedClusters[w].store(0, std::memory_order_relaxed);
+  });
 
-  for (size_t idx = 0; idx < Options["Threads"]; ++idx)
+  // Mark the bits past the last cluster as cleared
+  if (clusterCount % 64)
+      clearedClusters[words - 1] = ~uint64_t(0) << (clusterCount % 64);
+
+  std::fill(sampledKeys.begin(), sampledKeys.end(), 0);
+
+  clearNext = clearDone = 0;
+  clearing = true;
+}
+
+
+/// TranspositionTable::clear_chunk() zeroes the next chunk of the clusters not
+/// touched since clear_async(). It is called by the search threads parked in
+/// idle_loop(). Returns false if there is no chunk left. A thread in it is
+/// counted in clearUsers from before it checks clearing, so that the table and
+/// the bitmap are not freed under it, see wait_for_clear().
+
+bool TranspositionTable::clear_chunk() const {
+
+  constexpr size_t ChunkClusters = 16384; // 512 kB
+
+  ++clearUsers;
+
+  size_t start = 0;
+  const bool more = clearing && (start = clearNext.fetch_add(ChunkClusters)) < clusterCount;
+
+  if (more)
   {
-      threads.emplace_back([this, idx]() {
+      for (size_t idx = start; idx < std::min(start + ChunkClusters, clusterCount); ++idx)
+          clear_cluster(idx);
+
+      if ((clearDone += ChunkClusters) >= clusterCount)
+          clearing = false;
+  }
+
+  --clearUsers;
+
+  return more;
+}
+
+
+/// TranspositionTable::wait_for_clear() finishes a clearing started by
+/// clear_async(), before an operation on the whole table, and waits for the
+/// threads still in clear_chunk() to leave it.
+
+void TranspositionTable::wait_for_clear() const {
+
+  while (clear_chunk()) {}
+
+  while (clearing || clearUsers)
+      std::this_thread::yield();
+}
+
 
-          // Thread binding gives faster search on systems with a first-touch policy
-          if (Options["Threads"] > 8)
-              WinProcGroup::bindThisThread(idx);
+/// TranspositionTable::save() dumps the transposition table, together with the
+/// current generation, to the given file through a memory mapping, so that a
+/// later session can restart from it with load(). Returns false on failure.
 
-          // Each thread will zero its part of the hash table
-          const size_t stride = size_t(clusterCount / Options["Threads"]),
-                       start  = size_t(stride * idx),
-                       len    = idx != Options["Threads"] - 1 ?
-                                stride : clusterCount - start;
+bool TranspositionTable::save(const std::string& fname) const {
 
-          std::memset(&table[start], 0, len * sizeof(Cluster));
+  Threads.main()->wait_for_search_finished();
+  wait_for_clear();
+
+  size_t size = sizeof(HashFileHeader) + clusterCount * sizeof(Cluster);
+  char* mem = static_cast<char*>(map_file(fname, size, true));
+
+  if (!mem)
+      return false;
+
+  HashFileHeader* header = reinterpret_cast<HashFileHeader*>(mem);
+  Cluster* data = reinterpret_cast<Cluster*>(mem + sizeof(HashFileHeader));
+
+  std::memset(header, 0, sizeof(HashFileHeader));
+  std::memcpy(header->magic, HashFileMagic, sizeof(HashFileMagic));
+  header->clusterCount = clusterCount;
+  header->clusterSize  = sizeof(Cluster);
+  header->generation8  = generation8;
+
+  for_each_chunk<sizeof(Cluster)>(clusterCount, [this, data](size_t start, size_t len) {
+      std::memcpy(&data[start], &table[start], len * sizeof(Cluster));
+  });
+
+  unmap_file(mem, size);
+  return true;
+}
+
+
+/// TranspositionTable::load() restores a transposition table previously written
+/// by save(). The file must have been saved with the same Hash size. Returns
+/// false, leaving the table untouched, if the file cannot be used.
+
+bool TranspositionTable::load(const std::string& fname) {
+
+  Threads.main()->wait_for_search_finished();
+  wait_for_clear();
+
+  size_t size = 0;
+  const char* mem = static_cast<const char*>(map_file(fname, size, false));
+
+  if (!mem)
+      return false;
+
+  const HashFileHeader* header = reinterpret_cast<const HashFileHeader*>(mem);
+  const Cluster* data = reinterpret_cast<const Cluster*>(mem + sizeof(HashFileHeader));
+
+  bool valid =   size >= sizeof(HashFileHeader)
+              && !std::memcmp(header->magic, HashFileMagic, sizeof(HashFileMagic))
+              && header->clusterSize == sizeof(Cluster)
+              && header->clusterCount == clusterCount
+              && size == sizeof(HashFileHeader) + clusterCount * sizeof(Cluster);
+
+  if (valid)
+  {
+      generation8 = header->generation8;
+
+      if (sharedHeader)
+          sharedHeader->generation8 = generation8;
+
+      for_each_chunk<sizeof(Cluster)>(clusterCount, [this, data](size_t start, size_t len) {
+          std::memcpy(&table[start], &data[start], len * sizeof(Cluster));
       });
+
+      std::fill(sampledKeys.begin(), sampledKeys.end(), 0);
   }
 
-  for (std::thread& th : threads)
-      th.join();
+  unmap_file(const_cast<char*>(mem), size);
+  return valid;
 }
 
 
 /// TranspositionTable::probe() looks up the current position in the transposition
 /// table. It returns true and a pointer to the TTEntry if the position is found.
 /// Otherwise, it returns false and a pointer to an empty or least valuable TTEntry
-/// to be replaced later. The replace value of an entry is calculated as its depth
-/// minus 8 times its relative age. TTEntry t1 is considered more valuable than
-/// TTEntry t2 if its replace value is greater than that of t2.
+/// to be replaced later, see probe_cluster().
 
 TTEntry* TranspositionTable::probe(const Key key, bool& found) const {
 
-  TTEntry* const tte = first_entry(key);
-  const uint16_t key16 = (uint16_t)key;  // Use the low 16 bits as key inside the cluster
+  // Zero the cluster if it holds entries from before clear_async()
+  if (clearing.load(std::memory_order_relaxed))
+      clear_cluster(mul_hi64(key, clusterCount));
+
+  TTEntry* const tte = probe_cluster(first_entry(key), (TTKey)key, found);
+
+  if (collectStats)
+      count_probe(tte, key, found);
+
+  return tte;
+}
+
+
+/// TranspositionTable::count_probe() counts a probe of the current thread, and
+/// the false hits in the sampled clusters.
+
+void TranspositionTable::count_probe(const TTEntry* tte, Key key, bool found) const {
+
+  TTStats* const stats = threadStats;
+
+  if (!stats)
+      return;
+
+  ++stats->probes;
+
+  if (found)
+  {
+      ++stats->hits;
+
+      Key* fullKey = sampled_key(tte);
+      if (fullKey && *fullKey)
+          ++stats->sampledHits, stats->falseHits += *fullKey != key;
+  }
+}
+
+
+/// TranspositionTable::count_store() counts the fills of empty entries and the
+/// replacements of other positions by the current thread, and keeps the full
+/// key of the entries of the sampled clusters. The entry tte, whose content
+/// before the store is old, must not be updated yet.
+
+void TranspositionTable::count_store(const TTEntry* tte, const TTEntry& old, Key key) const {
+
+  if (Key* fullKey = sampled_key(tte))
+      *fullKey = key;
+
+  TTStats* const stats = threadStats;
+
+  if (!stats || !owns(tte) || (old.depth8 && (TTKey)key == old.key()))
+      return;
+
+  if (!old.depth8)
+      ++stats->fills;
+  else
+  {
+      ++stats->replacements;
+      ++stats->replacedByDepth[std::min(int(old.depth8), TTStats::DepthBuckets - 1)];
+      ++stats->replacedByAge[relative_age(old.genBound8)];
+  }
+}
+
+
+/// TranspositionTable::count_eval_key() counts an evaluation of the current
+/// thread, and whether its key is still in the table of the last evaluated
+/// keys, which it then replaces.
+
+void TranspositionTable::count_eval_key(Key key) const {
+
+  TTStats* const stats = threadStats;
+
+  if (!stats)
+      return;
+
+  if (stats->evalKeys.empty())
+      stats->evalKeys.resize(TTStats::EvalKeys);
+
+  Key& slot = stats->evalKeys[key & (TTStats::EvalKeys - 1)];
+
+  ++stats->evals;
+  stats->evalRepeats += slot == key;
+  slot = key;
+}
+
+
+/// TranspositionTable::probe_cluster() looks up a key in the cluster starting at
+/// tte. The replace value of an entry is calculated as its depth minus 8 times
+/// its relative age. TTEntry t1 is considered more valuable than TTEntry t2 if
+/// its replace value is greater than that of t2.
+
+TTEntry* TranspositionTable::probe_cluster(TTEntry* const tte, const TTKey ttKey, bool& found) const {
 
   for (int i = 0; i < ClusterSize; ++i)
-      if (tte[i].key16 == key16 || !tte[i].depth8)
+      if (tte[i].key() == ttKey || !tte[i].depth8)
       {
           tte[i].genBound8 = uint8_t(generation8 | (tte[i].genBound8 & (GENERATION_DELTA - 1))); // Refresh
 
@@ -146,6 +895,109 @@ TTEntry* TranspositionTable::probe(const Key key, bool& found) const {
 }
 
 
+/// PVTable::clear() empties the table
+
+void PVTable::clear() {
+
+  for (Slot& slot : table)
+  {
+      slot.keyXorData.store(0, std::memory_order_relaxed);
+      slot.data.store(0, std::memory_order_relaxed);
+  }
+}
+
+
+/// PVTable::store() saves the best move and the score of a position of a
+/// principal variation, replacing any other position in the same slot. The
+/// score is in the transposition table format, relative to the position.
+
+void PVTable::store(Key key, Move m, Value v) {
+
+  Slot& slot = table[key & (Size - 1)];
+  const uint64_t data = uint64_t(uint16_t(m)) | uint64_t(uint16_t(v)) << 16;
+
+  slot.data.store(data, std::memory_order_relaxed);
+  slot.keyXorData.store(key ^ data, std::memory_order_relaxed);
+}
+
+
+/// PVTable::probe() looks up a position and returns its move, MOVE_NONE if the
+/// position is not found. If found and v is not null, the score is copied to v.
+
+Move PVTable::probe(Key key, Value* v) const {
+
+  const Slot& slot = table[key & (Size - 1)];
+  const uint64_t data = slot.data.load(std::memory_order_relaxed);
+
+  if ((slot.keyXorData.load(std::memory_order_relaxed) ^ data) != key)
+      return MOVE_NONE;
+
+  if (v)
+      *v = Value(int16_t(data >> 16));
+
+  return Move(uint16_t(data));
+}
+
+
+/// LocalTT::resize() sets the size of the table in kilobytes, 0 to disable it,
+/// and clears it.
+
+void LocalTT::resize(size_t kbSize) {
+
+  const size_t newClusterCount = kbSize * 1024 / sizeof(TranspositionTable::Cluster);
+
+  if (newClusterCount != clusterCount)
+  {
+      std_aligned_free(table);
+      table = nullptr;
+      clusterCount = newClusterCount;
+
+      if (clusterCount)
+          table = static_cast<TranspositionTable::Cluster*>(
+                  std_aligned_alloc(64, clusterCount * sizeof(TranspositionTable::Cluster)));
+
+      if (clusterCount && !table)
+      {
+          std::cerr << "Failed to allocate " << kbSize
+                    << "KB for thread transposition table." << std::endl;
+          exit(EXIT_FAILURE);
+      }
+  }
+
+  if (table)
+      std::memset(table, 0, clusterCount * sizeof(TranspositionTable::Cluster));
+}
+
+
+/// LocalTT::probe() looks up the position first in the local table, and then in
+/// the shared one, whose cluster do_move() has already prefetched. It always
+/// returns an entry of the local table: an entry found in the shared table, of
+/// the main search, is copied into the local one, so that the quiescence search
+/// writes its results to the local table only.
+
+TTEntry* LocalTT::probe(const Key key, bool& found) {
+
+  TTEntry* const first = &table[mul_hi64(key, clusterCount)].entry[0];
+  TTEntry* const tte = TT.probe_cluster(first, (TTKey)key, found);
+
+  if (TT.collectStats && TranspositionTable::threadStats)
+  {
+      ++TranspositionTable::threadStats->localProbes;
+      TranspositionTable::threadStats->localHits += found;
+  }
+
+  if (found)
+      return tte;
+
+  const TTEntry* const sharedTte = TT.probe(key, found);
+
+  if (found)
+      *tte = *sharedTte;
+
+  return tte;
+}
+
+
 /// TranspositionTable::hashfull() returns an approximation of the hashtable
 /// occupation during a search. The hash is x permill full, as per UCI protocol.
 
@@ -154,9 +1006,239 @@ int TranspositionTable::hashfull() const {
   int cnt = 0;
   for (int i = 0; i < 1000; ++i)
       for (int j = 0; j < ClusterSize; ++j)
-          cnt += table[i].entry[j].depth8 && (table[i].entry[j].genBound8 & GENERATION_MASK) == generation8;
+          cnt +=  table[i].entry[j].depth8 && (table[i].entry[j].genBound8 & GENERATION_MASK) == generation8
+               && is_cleared(i);
 
   return cnt / ClusterSize;
 }
 
+
+/// TranspositionTable::total_stats() sums the counters of all the search threads
+
+TTStats TranspositionTable::total_stats() const {
+
+  TTStats total = TTStats();
+
+  for (Thread* th : Threads)
+  {
+      const TTStats& stats = th->ttStats;
+
+      total.probes       += stats.probes;
+      total.hits         += stats.hits;
+      total.fills        += stats.fills;
+      total.replacements += stats.replacements;
+      total.localProbes  += stats.localProbes;
+      total.localHits    += stats.localHits;
+      total.sampledHits  += stats.sampledHits;
+      total.falseHits    += stats.falseHits;
+      total.evals        += stats.evals;
+      total.evalRepeats  += stats.evalRepeats;
+
+      for (int i = 0; i < TTStats::DepthBuckets; ++i)
+          total.replacedByDepth[i] += stats.replacedByDepth[i];
+
+      for (int i = 0; i < TTStats::AgeBuckets; ++i)
+          total.replacedByAge[i] += stats.replacedByAge[i];
+  }
+
+  return total;
+}
+
+
+/// TranspositionTable::stats() returns the statistics of the accesses to the
+/// table since the last ucinewgame, followed by the occupancy, the depths and
+/// the ages of the entries in a sample of sampleClusters clusters evenly spread
+/// over the table (0 for the whole table). Histograms list the non-empty
+/// buckets as bucket:count, depths are in plies and ages in searches.
+
+std::string TranspositionTable::stats(size_t sampleClusters) const {
+
+  const TTStats total = total_stats();
+  std::stringstream ss;
+
+  auto percent = [](uint64_t n, uint64_t d) { return d ? 100.0 * n / d : 0.0; };
+
+  auto depthHistogram = [&](const uint64_t* buckets) {
+      for (int i = 1; i < TTStats::DepthBuckets; ++i)
+          if (buckets[i])
+              ss << " " << i + DEPTH_OFFSET << (i == TTStats::DepthBuckets - 1 ? "+" : "")
+                 << ":" << buckets[i];
+  };
+
+  auto ageHistogram = [&](const uint64_t* buckets) {
+      for (int i = 0; i < TTStats::AgeBuckets; ++i)
+          if (buckets[i])
+              ss << " " << i << ":" << buckets[i];
+  };
+
+  if (!collectStats)
+      ss << "Accesses are only counted with the Hash Stats option\n";
+
+  ss << std::fixed << std::setprecision(2)
+     << "Probes            : " << total.probes
+     << "\nHits              : " << total.hits << " (" << percent(total.hits, total.probes) << "%)"
+     << "\nFills             : " << total.fills
+     << "\nReplacements      : " << total.replacements
+     << "\nReplaced by depth :";
+  depthHistogram(total.replacedByDepth);
+  ss << "\nReplaced by age   :";
+  ageHistogram(total.replacedByAge);
+
+  if (total.localProbes)
+      ss << "\nThread hash probes: " << total.localProbes
+         << "\nThread hash hits  : " << total.localHits
+         << " (" << percent(total.localHits, total.localProbes) << "%)";
+
+  if (total.evals)
+      ss << "\nEvaluations       : " << total.evals
+         << "\nRepeated evals    : " << total.evalRepeats
+         << " (" << percent(total.evalRepeats, total.evals) << "%)";
+
+  if (sampling())
+      ss << "\nFalse hits        : " << total.falseHits << " of " << total.sampledHits
+         << " sampled hits";
+
+  const size_t sample =   sampleClusters && sampleClusters < clusterCount
+                        ? sampleClusters : clusterCount;
+  const size_t stride = clusterCount / sample;
+
+  uint64_t depths[TTStats::DepthBuckets] = {}, ages[TTStats::AgeBuckets] = {}, empty = 0;
+
+  // The clusters not yet cleared after clear_async() count as empty
+  for (size_t i = 0; i < sample; ++i)
+      for (const TTEntry& tte : table[i * stride].entry)
+          if (!tte.depth8 || !is_cleared(i * stride))
+              ++empty;
+          else
+          {
+              ++depths[std::min(int(tte.depth8), TTStats::DepthBuckets - 1)];
+              ++ages[relative_age(tte.genBound8)];
+          }
+
+  ss << "\nSampled clusters  : " << sample << " of " << clusterCount
+     << "\nEmpty entries     : " << empty << " (" << percent(empty, sample * ClusterSize) << "%)"
+     << "\nEntries by depth  :";
+  depthHistogram(depths);
+  ss << "\nEntries by age    :";
+  ageHistogram(ages);
+
+  return ss.str();
+}
+
+
+/// TranspositionTable::stats_info() returns a one line summary of the
+/// statistics, sent as "info string" during the search if Hash Stats is set.
+
+std::string TranspositionTable::stats_info() const {
+
+  const TTStats total = total_stats();
+  std::stringstream ss;
+
+  ss << "hash probes " << total.probes
+     << " hits " << total.hits
+     << " fills " << total.fills
+     << " replacements " << total.replacements;
+
+  if (total.localProbes)
+      ss << " threadhashprobes " << total.localProbes
+         << " threadhashhits " << total.localHits;
+
+  return ss.str();
+}
+
+
+/// TranspositionTable::stress_test() hammers the table from several threads,
+/// each one storing and probing entries whose content is derived from their
+/// key, and counts the hits whose content belongs to another position, i.e. the
+/// entries torn by concurrent writes. The keys have distinct low 16 bits, so
+/// that there are no regular false hits, and share a few clusters to maximize
+/// the contention. The table is cleared afterwards, so the test is refused on
+/// a table shared with other processes.
+
+void TranspositionTable::stress_test(size_t threadCount, uint64_t probes) {
+
+  if (shared())
+  {
+      sync_cout << "info string ttstress is not available with a shared hash" << sync_endl;
+      return;
+  }
+
+  Threads.main()->wait_for_search_finished();
+  wait_for_clear();
+
+  constexpr int KeyClusters = 256;
+
+  Key bases[KeyClusters];
+  PRNG rng(1070372);
+
+  for (Key& base : bases)
+      base = rng.rand<Key>() & ~Key(0xFFFF);
+
+  std::atomic<uint64_t> hits(0), corrupted(0);
+  std::vector<std::thread> threads;
+  TimePoint elapsed = now();
+
+  for (size_t idx = 0; idx < threadCount; ++idx)
+      threads.emplace_back([&, idx]() {
+
+          PRNG prng(idx + 1);
+          uint64_t h = 0, c = 0;
+          TTStats stats = TTStats();
+          threadStats = &stats;
+
+          for (uint64_t n = 0; n < probes; ++n)
+          {
+              const uint16_t i = prng.rand<uint16_t>();
+              const Key key = bases[i % KeyClusters] | i;
+              const uint64_t data = key * 0x9E3779B97F4A7C15ULL;
+
+              const Move  m  = Move(uint16_t(data) | 1);
+              const Value v  = Value(int16_t(data >> 16));
+              const Value ev = Value(int16_t(data >> 32));
+              const Depth d  = Depth((data >> 48) % 64 + 1);
+              const Bound b  = Bound((data >> 56) % 3 + 1);
+              const bool  pv = (data >> 60) & 1;
+
+              bool found;
+              TTEntry* tte = probe(key, found);
+              const TTEntry entry = *tte;
+
+              // Check a copy, as the entry may be overwritten since probe()
+              if (found && entry.key() == TTKey(key))
+              {
+                  ++h;
+                  c +=   entry.move() != m || entry.value() != v || entry.eval() != ev
+                      || entry.depth() != d || entry.bound() != b || entry.is_pv() != pv;
+              }
+
+              tte->save(key, v, pv, b, d, m, ev);
+          }
+
+          hits += h;
+          corrupted += c;
+      });
+
+  for (std::thread& th : threads)
+      th.join();
+
+  elapsed = now() - elapsed + 1; // Ensure positivity to avoid a 'divide by zero'
+
+  const uint64_t total = threadCount * probes;
+
+  std::cerr << "\n==========================="
+            << "\nEntry check     : "
+#if defined(TT_CHECK)
+            << "on"
+#else
+            << "off"
+#endif
+            << "\nThreads         : " << threadCount
+            << "\nProbes          : " << total
+            << "\nHits            : " << hits
+            << "\nCorrupted hits  : " << corrupted
+            << "\nProbes/second   : " << 1000 * total / elapsed << std::endl;
+
+  clear();
+}
+
 } // namespace Stockfish
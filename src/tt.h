@@ -19,6 +19,12 @@
 #ifndef TT_H_INCLUDED
 #define TT_H_INCLUDED
 
+#include <atomic>
+#include <cstring>
+#include <memory>
+#include <string>
+#include <vector>
+
 #include "misc.h"
 #include "types.h"
 
@@ -34,6 +40,22 @@ namespace Stockfish {
 /// move       16 bit
 /// value      16 bit
 /// eval value 16 bit
+///
+/// When compiled with TT_KEY32 (make ttkey=32), the key has 32 bits instead,
+/// making a 12 bytes entry, so that false hits get 65536 times less likely at
+/// the cost of 5 entries per 64 bytes instead of 6.
+///
+/// When compiled with TT_CHECK (make ttcheck=yes), the stored key is XOR-ed with
+/// a fold of the other 64 bits of the entry, except the generation that is
+/// refreshed on each hit. An entry torn by concurrent writes of several threads
+/// then almost never matches its key anymore, so that probe() does not return
+/// data mixed from different positions.
+
+#if defined(TT_KEY32)
+typedef uint32_t TTKey;
+#else
+typedef uint16_t TTKey;
+#endif
 
 struct TTEntry {
 
@@ -48,7 +70,24 @@ struct TTEntry {
 private:
   friend class TranspositionTable;
 
-  uint16_t key16;
+#if defined(TT_CHECK)
+  TTKey check() const {
+    uint64_t data =   uint64_t(depth8)
+                    | uint64_t(genBound8 & 0x7) << 8 // Without the generation
+                    | uint64_t(move16) << 16
+                    | uint64_t(uint16_t(value16)) << 32
+                    | uint64_t(uint16_t(eval16)) << 48;
+    data ^= data >> 32;
+    return TTKey(sizeof(TTKey) == 2 ? data ^ (data >> 16) : data);
+  }
+#else
+  TTKey check() const { return 0; }
+#endif
+
+  TTKey key() const { return keyBits ^ check(); }
+  void set_key(TTKey k) { keyBits = k ^ check(); }
+
+  TTKey    keyBits;
   uint8_t  depth8;
   uint8_t  genBound8;
   uint16_t move16;
@@ -57,14 +96,56 @@ private:
 };
 
 
+/// TTStats keeps the counters of the accesses to the transposition table, which
+/// are only collected when the Hash Stats option is set. Each search thread has
+/// its own, so that the search does not contend on them, and they are summed by
+/// the "hashstats" command. Histograms are indexed by depth8 (the last bucket
+/// collecting the deeper entries) and by age in generations.
+///
+/// The evaluations are counted too, with those of a position evaluated again
+/// by the same thread while its key is still in a direct-mapped table of the
+/// last evaluated keys: the hits of an evaluation cache of that size.
+
+struct TTStats {
+
+  static constexpr int DepthBuckets = 40;
+  static constexpr int AgeBuckets   = 32;
+  static constexpr size_t EvalKeys  = 65536;
+
+  void clear() { *this = TTStats(); }
+
+  uint64_t probes, hits, fills, replacements;
+  uint64_t localProbes, localHits;
+  uint64_t sampledHits, falseHits;
+  uint64_t evals, evalRepeats;
+  uint64_t replacedByDepth[DepthBuckets];
+  uint64_t replacedByAge[AgeBuckets];
+  std::vector<Key> evalKeys; // Allocated on the first evaluation counted
+};
+
+
 /// A TranspositionTable is an array of Cluster, of size clusterCount. Each
 /// cluster consists of ClusterSize number of TTEntry. Each non-empty TTEntry
 /// contains information on exactly one position. The size of a Cluster should
 /// divide the size of a cache line for best performance, as the cacheline is
 /// prefetched when possible.
+///
+/// A few clusters also keep the full key of their entries, so that the rate of
+/// false hits, where an entry of another position matches the stored key bits,
+/// can be measured.
 
 class TranspositionTable {
 
+#if defined(TT_KEY32)
+  static constexpr int ClusterSize = 5;
+
+  struct Cluster {
+    TTEntry entry[ClusterSize];
+    char padding[4]; // Pad to 64 bytes
+  };
+
+  static_assert(sizeof(Cluster) == 64, "Unexpected Cluster size");
+#else
   static constexpr int ClusterSize = 3;
 
   struct Cluster {
@@ -73,6 +154,10 @@ class TranspositionTable {
   };
 
   static_assert(sizeof(Cluster) == 32, "Unexpected Cluster size");
+#endif
+
+  // One cluster out of SampleRate keeps the full keys of its entries
+  static constexpr size_t SampleRate = 1024;
 
   // Constants used to refresh the hash table periodically
   static constexpr unsigned GENERATION_BITS  = 3;                                // nb of bits reserved for other things
@@ -81,27 +166,151 @@ class TranspositionTable {
   static constexpr int      GENERATION_MASK  = (0xFF << GENERATION_BITS) & 0xFF; // mask to pull out generation number
 
 public:
- ~TranspositionTable() { aligned_large_pages_free(table); }
-  void new_search() { generation8 += GENERATION_DELTA; } // Lower bits are used for other things
+ ~TranspositionTable() { release(); }
+  void new_search();
   TTEntry* probe(const Key key, bool& found) const;
   int hashfull() const;
   void resize(size_t mbSize);
   void clear();
+  void clear_async();
+  bool clear_chunk() const;
+  void wait_for_clear() const;
+  bool save(const std::string& fname) const;
+  bool load(const std::string& fname);
+  bool shared() const { return sharedHeader != nullptr; }
+  void stress_test(size_t threadCount, uint64_t probes);
+  void set_sampling(bool on);
+  bool sampling() const { return !sampledKeys.empty(); }
+  uint64_t sampled_hits() const { return total_stats().sampledHits; }
+  uint64_t false_hits() const { return total_stats().falseHits; }
+  std::string stats(size_t sampleClusters) const;
+  std::string stats_info() const;
+  void count_eval(Key key) const { if (collectStats) count_eval_key(key); }
+
+  // Counters of the current thread, set by the search threads to their own.
+  // Other threads have none and their accesses are not counted.
+  static thread_local TTStats* threadStats;
 
   TTEntry* first_entry(const Key key) const {
     return &table[mul_hi64(key, clusterCount)].entry[0];
   }
 
+  // sampled_key() returns the full key of an entry of a sampled cluster, or
+  // nullptr if its cluster is not sampled or the sampling is off.
+  Key* sampled_key(const TTEntry* tte) const {
+    if (sampledKeys.empty())
+        return nullptr;
+
+    const size_t offset = size_t(reinterpret_cast<const char*>(tte) - reinterpret_cast<const char*>(table));
+    const size_t idx = offset / sizeof(Cluster);
+
+    return idx % SampleRate || idx >= clusterCount ? nullptr
+          : &sampledKeys[idx / SampleRate * ClusterSize + offset % sizeof(Cluster) / sizeof(TTEntry)];
+  }
+
 private:
   friend struct TTEntry;
+  friend class LocalTT;
+
+  struct SharedHeader;
+
+  TTEntry* probe_cluster(TTEntry* const tte, const TTKey ttKey, bool& found) const;
+  void count_probe(const TTEntry* tte, Key key, bool found) const;
+  void count_store(const TTEntry* tte, const TTEntry& old, Key key) const;
+  void count_eval_key(Key key) const;
+  bool owns(const TTEntry* tte) const {
+    return size_t(reinterpret_cast<const char*>(tte) - reinterpret_cast<const char*>(table))
+         < clusterCount * sizeof(Cluster);
+  }
+  TTStats total_stats() const;
+  int relative_age(uint8_t genBound8) const {
+    return ((GENERATION_CYCLE + generation8 - genBound8) & GENERATION_MASK) / GENERATION_DELTA;
+  }
+  bool attach_shared(const std::string& name);
+  void migrate(const Cluster* oldTable, size_t oldClusterCount);
+  void release();
+
+  // clear_cluster() zeroes a cluster not touched since clear_async()
+  void clear_cluster(size_t idx) const {
+    std::atomic<uint64_t>& word = clearedClusters[idx / 64];
+    const uint64_t bit = uint64_t(1) << (idx % 64);
+
+    if (!(word.load(std::memory_order_relaxed) & bit))
+    {
+        std::memset(static_cast<void*>(&table[idx]), 0, sizeof(Cluster));
+        word.fetch_or(bit, std::memory_order_relaxed);
+    }
+  }
+
+  bool is_cleared(size_t idx) const {
+    return !clearing || (clearedClusters[idx / 64].load(std::memory_order_relaxed) & (uint64_t(1) << (idx % 64)));
+  }
 
   size_t clusterCount;
   Cluster* table;
+  SharedHeader* sharedHeader; // Not null if the table lives in shared memory
+  std::string segmentName;    // Name and descriptor of the shared memory segment
+  int segmentFd;
   uint8_t generation8; // Size must be not bigger than TTEntry::genBound8
+  mutable std::vector<Key> sampledKeys; // Full keys of the sampled clusters, 0 if unknown
+  bool collectStats; // Set by the Hash Stats option
+
+  // State of a clearing started by clear_async()
+  mutable std::unique_ptr<std::atomic<uint64_t>[]> clearedClusters; // One bit per cluster
+  mutable std::atomic<size_t> clearNext, clearDone;
+  mutable std::atomic<bool> clearing;
+  mutable std::atomic<int> clearUsers; // Threads in clear_chunk()
 };
 
 extern TranspositionTable TT;
 
+
+/// LocalTT is a small table private to a search thread, which the quiescence
+/// search uses in front of the shared table when the Thread Hash option is set.
+/// Its entries stay in the CPU caches, and the quiescence entries no longer
+/// take room from the deeper ones in the shared table.
+
+class LocalTT {
+
+public:
+ ~LocalTT() { std_aligned_free(table); }
+  void resize(size_t kbSize);
+  TTEntry* probe(const Key key, bool& found);
+  bool enabled() const { return table != nullptr; }
+
+private:
+  size_t clusterCount = 0;
+  TranspositionTable::Cluster* table = nullptr;
+};
+
+
+/// PVTable keeps the best move and score of the positions along the principal
+/// variations of the last iterations, apart from the transposition table so
+/// that they survive when the latter is under heavy pressure. It is written by
+/// the main thread and read by all the threads without locking: the fields are
+/// relaxed atomics, and the key is stored xored with the data, so that an entry
+/// read while being written is not found.
+
+class PVTable {
+
+  static constexpr size_t Size = 1 << 16;
+
+  struct Slot {
+    std::atomic<uint64_t> keyXorData;
+    std::atomic<uint64_t> data;
+  };
+
+public:
+  void clear();
+  void store(Key key, Move m, Value v);
+  Move probe(Key key, Value* v = nullptr) const;
+
+private:
+  Slot table[Size];
+};
+
+extern PVTable PVT;
+
 } // namespace Stockfish
 
 #endif // #ifndef TT_H_INCLUDED
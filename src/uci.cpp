@@ -18,10 +18,12 @@
 
 #include <cassert>
 #include <cmath>
+#include <fstream>
 #include <iostream>
 #include <sstream>
 #include <string>
 
+#include "cluster.h"
 #include "evaluate.h"
 #include "movegen.h"
 #include "position.h"
@@ -76,16 +78,19 @@ namespace {
         states->emplace_back();
         pos.do_move(m, states->back());
     }
+
+    Cluster::position(is.str());
   }
 
   // trace_eval() prints the evaluation for the current position, consistent with the UCI
-  // options set so far.
+  // options set so far. The position is set up on the scratch thread, whose accumulators
+  // and caches are not those of a search that may be running.
 
   void trace_eval(Position& pos) {
 
     StateListPtr states(new std::deque<StateInfo>(1));
     Position p;
-    p.set(pos.fen(), Options["UCI_Chess960"], &states->back(), Threads.main());
+    p.set(pos.fen(), Options["UCI_Chess960"], &states->back(), Threads.scratch());
 
     Eval::NNUE::verify();
 
@@ -147,6 +152,7 @@ namespace {
         else if (token == "infinite")  limits.infinite = 1;
         else if (token == "ponder")    ponderMode = true;
 
+    Cluster::go(limits);
     Threads.start_thinking(pos, states, limits, ponderMode);
   }
 
@@ -195,8 +201,143 @@ namespace {
          << "\nTotal time (ms) : " << elapsed
          << "\nNodes searched  : " << nodes
          << "\nNodes/second    : " << 1000 * nodes / elapsed << endl;
+
+    if (TT.sampling())
+        cerr << "Hash false hits : " << TT.false_hits() << " of "
+                                     << TT.sampled_hits() << " sampled hits" << endl;
+  }
+
+  // hash_file() is called when engine receives the "savehash" or "loadhash"
+  // command. It dumps the transposition table to the given file, or restores
+  // it from a file previously written by "savehash".
+
+  void hash_file(istringstream& is, bool save) {
+
+    string fname;
+
+    if (!(is >> skipws >> fname))
+    {
+        sync_cout << "info string No file name given" << sync_endl;
+        return;
+    }
+
+    if (save ? TT.save(fname) : TT.load(fname))
+        sync_cout << "info string Hash " << (save ? "saved to " : "loaded from ")
+                  << fname << sync_endl;
+    else
+        sync_cout << "info string Failed to " << (save ? "save hash to " : "load hash from ")
+                  << fname << sync_endl;
+  }
+
+  // tt_stress() is called when engine receives the "ttstress" command. It runs
+  // the transposition table stress test with the given number of threads and
+  // probes per thread, by default the Threads option and 10 million.
+
+  void tt_stress(istringstream& is) {
+
+    size_t threads = 0;
+    uint64_t probes = 0;
+
+    is >> threads >> probes;
+
+    TT.stress_test(threads ? threads : size_t(Options["Threads"]), probes ? probes : 10000000);
+  }
+
+
+  // hash_stats() is called when engine receives the "hashstats" command. It
+  // prints the transposition table statistics, sampling the given number of
+  // clusters (by default 1 million, 0 for the whole table).
+
+  void hash_stats(istringstream& is) {
+
+    size_t sample;
+
+    if (!(is >> sample))
+        sample = 1000000;
+
+    sync_cout << TT.stats(sample) << sync_endl;
   }
 
+
+  // eval_batch() is called when engine receives the "evalbatch" command. It
+  // evaluates with NNUE the positions of a file of FENs, one per line, or of the
+  // following input lines up to an empty one when the file is "-" or not given,
+  // and writes their evaluations as CSV to the given file or to stdout, or as
+  // 16 bit integers to the given file in binary mode.
+
+  void eval_batch(istringstream& is) {
+
+    string inName = "-", format = "csv", outName = "-";
+
+    is >> skipws >> inName >> format >> outName;
+
+    bool binary = format == "bin";
+
+    if (!binary && format != "csv")
+    {
+        sync_cout << "info string Unknown format " << format << ", use csv or bin" << sync_endl;
+        return;
+    }
+
+    if (binary && outName == "-")
+    {
+        sync_cout << "info string Binary output needs a file name" << sync_endl;
+        return;
+    }
+
+    if (!Eval::useNNUE)
+    {
+        sync_cout << "info string NNUE evaluation is disabled" << sync_endl;
+        return;
+    }
+
+    Eval::NNUE::verify();
+
+    ifstream inFile;
+    ofstream outFile;
+
+    if (inName != "-")
+    {
+        inFile.open(inName);
+        if (!inFile)
+        {
+            sync_cout << "info string Unable to open file " << inName << sync_endl;
+            return;
+        }
+    }
+
+    if (outName != "-")
+    {
+        outFile.open(outName, binary ? ios::binary : ios::out);
+        if (!outFile)
+        {
+            sync_cout << "info string Unable to open file " << outName << sync_endl;
+            return;
+        }
+    }
+
+    // From stdin, read the FENs up to an empty line
+    stringstream lines;
+    if (inName == "-")
+        for (string line; getline(cin, line) && !line.empty(); )
+            lines << line << '\n';
+
+    istream& in = inName == "-" ? static_cast<istream&>(lines) : inFile;
+    ostream& out = outName == "-" ? cout : outFile;
+
+    TimePoint elapsed = now();
+
+    uint64_t count = Eval::NNUE::evaluate_batch(in, out, binary);
+
+    elapsed = now() - elapsed + 1; // Ensure positivity to avoid a 'divide by zero'
+
+    cerr << "\n==========================="
+         << "\nPositions        : " << count
+         << "\nTotal time (ms)  : " << elapsed
+         << "\nPositions/second : " << 1000 * count / elapsed << endl;
+  }
+
+
   // The win rate model returns the probability (per mille) of winning given an eval
   // and a game-ply. The model fits rather accurately the LTC fishtest statistics.
   int win_rate_model(Value v, int ply) {
@@ -240,7 +381,10 @@ void UCI::loop(int argc, char* argv[]) {
       cmd += std::string(argv[i]) + " ";
 
   do {
-      if (argc == 1 && !getline(cin, cmd)) // Block here waiting for input or EOF
+      if (Cluster::is_worker()) // A worker executes the commands of its coordinator
+          Cluster::receive_command(cmd);
+
+      else if (argc == 1 && !getline(cin, cmd)) // Block here waiting for input or EOF
           cmd = "quit";
 
       istringstream is(cmd);
@@ -267,7 +411,7 @@ void UCI::loop(int argc, char* argv[]) {
       else if (token == "setoption")  setoption(is);
       else if (token == "go")         go(pos, is, states);
       else if (token == "position")   position(pos, is, states);
-      else if (token == "ucinewgame") Search::clear();
+      else if (token == "ucinewgame") { Cluster::broadcast(cmd); Search::clear(); }
       else if (token == "isready")    sync_cout << "readyok" << sync_endl;
 
       // Additional custom non-UCI commands, mainly for debugging.
@@ -277,18 +421,46 @@ void UCI::loop(int argc, char* argv[]) {
       else if (token == "d")        sync_cout << pos << sync_endl;
       else if (token == "eval")     trace_eval(pos);
       else if (token == "compiler") sync_cout << compiler_info() << sync_endl;
+      else if (token == "savehash") hash_file(is, true);
+      else if (token == "loadhash") hash_file(is, false);
+      else if (token == "ttstress") tt_stress(is);
+      else if (token == "hashstats") hash_stats(is);
+      else if (token == "evalbatch") eval_batch(is);
+      else if (token == "nnuebench")
+      {
+          int iterations = 0;
+          is >> skipws >> iterations;
+          Eval::NNUE::benchmark(iterations > 0 ? iterations : 100000);
+      }
       else if (token == "export_net")
       {
           std::optional<std::string> filename;
           std::string f;
-          if (is >> skipws >> f)
-              filename = f;
-          Eval::NNUE::save_eval(filename);
+          bool compressed = false;
+          while (is >> skipws >> f)
+              if (f == "compressed")
+                  compressed = true;
+              else
+                  filename = f;
+          Eval::NNUE::save_eval(filename, compressed);
+      }
+      else if (token == "clusterworker")
+      {
+          std::string host;
+          int port = 0;
+          is >> skipws >> host >> port;
+          Cluster::join(host, port);
+      }
+      else if (token == "export_net_image")
+      {
+          std::string f;
+          is >> skipws >> f;
+          Eval::NNUE::save_eval_image(f);
       }
       else if (!token.empty() && token[0] != '#')
           sync_cout << "Unknown command: " << cmd << sync_endl;
 
-  } while (token != "quit" && argc == 1); // Command line args are one-shot
+  } while (token != "quit" && (argc == 1 || Cluster::is_worker())); // Command line args are one-shot
 }
 
 
@@ -21,6 +21,7 @@
 #include <ostream>
 #include <sstream>
 
+#include "cluster.h"
 #include "evaluate.h"
 #include "misc.h"
 #include "search.h"
@@ -38,13 +39,25 @@ UCI::OptionsMap Options; // Global object
 namespace UCI {
 
 /// 'On change' actions, triggered by an option's value change
-void on_clear_hash(const Option&) { Search::clear(); }
+void on_clear_hash(const Option&) { Search::clear(); if (TT.shared()) TT.clear(); }
 void on_hash_size(const Option& o) { TT.resize(size_t(o)); }
+void on_hash_shared_name(const Option&) { TT.resize(size_t(Options["Hash"])); }
+void on_thread_hash(const Option& o) {
+  Threads.main()->wait_for_search_finished();
+  for (Thread* th : Threads)
+      th->localTT.resize(size_t(o));
+}
 void on_logger(const Option& o) { start_logger(o); }
 void on_threads(const Option& o) { Threads.set(size_t(o)); }
+void on_hash_stats(const Option& o) { TT.set_sampling(o); }
 void on_tb_path(const Option& o) { Tablebases::init(o); }
 void on_use_NNUE(const Option& ) { Eval::NNUE::init(); }
 void on_eval_file(const Option& ) { Eval::NNUE::init(); }
+void on_cluster_port(const Option& o) { Cluster::listen(Options["Cluster Address"], int(o)); }
+void on_cluster_address(const Option& o) {
+  if (int(Options["Cluster Port"]))
+      Cluster::listen(o, int(Options["Cluster Port"]));
+}
 
 /// Our case insensitive less() function as required by UCI protocol
 bool CaseInsensitiveLess::operator() (const string& s1, const string& s2) const {
@@ -63,9 +76,17 @@ void init(OptionsMap& o) {
   o["Debug Log File"]        << Option("", on_logger);
   o["Threads"]               << Option(1, 1, 512, on_threads);
   o["Hash"]                  << Option(16, 1, MaxHashMB, on_hash_size);
+  o["Hash Shared Name"]      << Option("<empty>", on_hash_shared_name);
   o["Clear Hash"]            << Option(on_clear_hash);
+  o["Async Clear Hash"]      << Option(false);
+  o["Thread Hash"]           << Option(0, 0, 1024, on_thread_hash);
+  o["ABDADA"]                << Option(false);
+  o["Cluster Port"]          << Option(0, 0, 65535, on_cluster_port);
+  o["Cluster Address"]       << Option("127.0.0.1", on_cluster_address);
+  o["Hash Stats"]            << Option(false, on_hash_stats);
   o["Ponder"]                << Option(false);
   o["MultiPV"]               << Option(1, 1, 500);
+  o["Split MultiPV"]         << Option(false);
   o["Skill Level"]           << Option(20, 0, 20);
   o["Move Overhead"]         << Option(10, 0, 5000);
   o["Slow Mover"]            << Option(100, 10, 1000);
@@ -81,6 +102,8 @@ void init(OptionsMap& o) {
   o["SyzygyProbeLimit"]      << Option(7, 0, 7);
   o["Use NNUE"]              << Option(true, on_use_NNUE);
   o["EvalFile"]              << Option(EvalFileDefaultName, on_eval_file);
+  o["EvalFile Endgame"]      << Option("<empty>", on_eval_file);
+  o["Endgame Net Pieces"]    << Option(12, 2, 32, on_eval_file);
 }
 
 
@@ -0,0 +1,58 @@
+#!/bin/bash
+# verify the cluster mode on localhost
+
+error()
+{
+  echo "cluster testing failed on line $1"
+  exit 1
+}
+trap 'error ${LINENO}' ERR
+
+# run from the src directory, like the other tests
+if [ ! -x ./stockfish ]; then
+  echo "cluster testing failed: no ./stockfish, run the test from the src directory"
+  exit 1
+fi
+
+echo "cluster testing started"
+
+# the logs of the processes go to a temporary directory, removed on exit
+logs=$(mktemp -d)
+trap 'kill $(jobs -p) 2>/dev/null || true; rm -rf "$logs"' EXIT
+
+port=$((20000 + RANDOM % 20000))
+nodes=500000
+
+# a coordinator, searching once its workers have joined
+( echo "setoption name Use NNUE value false"
+  echo "setoption name Cluster Port value $port"
+  sleep 2
+  echo "position startpos moves e2e4 e7e5"
+  echo "go nodes $nodes"
+  sleep 10
+  echo "quit" ) | ./stockfish > "$logs/coordinator.out" 2>&1 &
+coordinator=$!
+
+sleep 1
+
+# two workers, and one refused for using the NNUE evaluation
+for i in 1 2; do
+  printf "setoption name Use NNUE value false\nclusterworker 127.0.0.1 $port\n" | ./stockfish > "$logs/worker$i.out" 2>&1 &
+done
+printf "clusterworker 127.0.0.1 $port\n" | ./stockfish > "$logs/worker3.out" 2>&1 &
+
+wait $coordinator
+wait
+
+grep -q "Cluster worker connected, 2 workers" "$logs/coordinator.out"
+grep -q "Cluster worker refused" "$logs/coordinator.out"
+grep -q "bestmove" "$logs/coordinator.out"
+grep -q "bestmove" "$logs/worker1.out"
+grep -q "bestmove" "$logs/worker2.out"
+
+# the reported nodes include those of the workers, the coordinator
+# alone stopping at about $nodes
+reported=$(grep -o "nodes [0-9]*" "$logs/coordinator.out" | tail -1 | cut -d ' ' -f 2)
+[ "$reported" -gt $((nodes * 5 / 4)) ]
+
+echo "cluster testing OK"
@@ -49,6 +49,8 @@ race:Stockfish::TTEntry::is_pv
 
 race:Stockfish::TranspositionTable::probe
 race:Stockfish::TranspositionTable::hashfull
+race:Stockfish::TranspositionTable::stress_test
+race:Stockfish::LocalTT::probe
 
 EOF
 
@@ -70,7 +72,8 @@ for args in "eval" \
             "go depth 10" \
             "go movetime 1000" \
             "go wtime 8000 btime 8000 winc 500 binc 500" \
-            "bench 128 $threads 8 default depth"
+            "bench 128 $threads 8 default depth" \
+            "ttstress $threads 100000"
 do
 
    echo "$prefix $exeprefix ./stockfish $args $postfix"
@@ -101,6 +104,11 @@ cat << EOF > game.exp
  send "go depth 10\n"
  expect "bestmove"
 
+ send "setoption name Thread Hash value 64\n"
+ send "position startpos\n"
+ send "go depth 10\n"
+ expect "bestmove"
+
  send "quit\n"
  expect eof
 